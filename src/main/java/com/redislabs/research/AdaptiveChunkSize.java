@@ -0,0 +1,172 @@
+package com.redislabs.research;
+
+/**
+ * AdaptiveChunkSize adjusts the chunk size used when indexing a DocumentStream, based on how long it took to sync
+ * previous chunks to redis and how many bytes they carried.
+ *
+ * A fixed chunk size is either too small for short documents or produces huge pipeline replies for long ones.
+ * Instead, you set a latency budget and/or a byte budget per chunk, and after each chunk is written the size is
+ * moved towards the number of documents that would have exactly met the budget. Changes are smoothed and limited
+ * to doubling or halving per chunk, within the given minimal and maximal sizes.
+ *
+ * This object is safe to share between concurrent writers.
+ */
+public class AdaptiveChunkSize {
+
+    public static final int DEFAULT_INITIAL_SIZE = 500;
+    public static final int DEFAULT_MIN_SIZE = 10;
+    public static final int DEFAULT_MAX_SIZE = 20000;
+
+    // weight of the last chunk in the smoothed throughput
+    private static final double SMOOTHING = 0.3;
+
+    private final int minSize;
+    private final int maxSize;
+    private final long targetLatencyNanos;
+    private final long targetBytes;
+
+    private volatile int chunkSize;
+
+    private long numChunks;
+    private long totalDocs;
+    private long totalBytes;
+    private double lastLatencyMillis;
+    private double docsPerSecond;
+    private double bytesPerSecond;
+
+    /**
+     * Create a new adaptive chunk size
+     * @param initialSize the size of the first chunk
+     * @param minSize the minimal chunk size
+     * @param maxSize the maximal chunk size
+     * @param targetLatencyMillis the time we want writing a single chunk to take, or 0 for no latency budget
+     * @param targetBytes the approximate number of bytes we want in a single chunk, or 0 for no byte budget
+     */
+    public AdaptiveChunkSize(int initialSize, int minSize, int maxSize, long targetLatencyMillis, long targetBytes) {
+        if (minSize < 1 || maxSize < minSize) {
+            throw new IllegalArgumentException("Invalid chunk size limits");
+        }
+        if (targetLatencyMillis <= 0 && targetBytes <= 0) {
+            throw new IllegalArgumentException("At least one of latency or byte budget must be set");
+        }
+        this.minSize = minSize;
+        this.maxSize = maxSize;
+        this.targetLatencyNanos = targetLatencyMillis * 1000000L;
+        this.targetBytes = targetBytes;
+        this.chunkSize = clamp(initialSize);
+    }
+
+    /**
+     * Create an adaptive chunk size aiming at a fixed time per chunk, with default limits
+     * @param targetLatencyMillis the time we want writing a single chunk to take
+     */
+    public static AdaptiveChunkSize forLatency(long targetLatencyMillis) {
+        return new AdaptiveChunkSize(DEFAULT_INITIAL_SIZE, DEFAULT_MIN_SIZE, DEFAULT_MAX_SIZE, targetLatencyMillis, 0);
+    }
+
+    /**
+     * Create an adaptive chunk size aiming at a fixed number of bytes per chunk, with default limits
+     * @param targetBytes the approximate number of bytes we want in a single chunk
+     */
+    public static AdaptiveChunkSize forBytes(long targetBytes) {
+        return new AdaptiveChunkSize(DEFAULT_INITIAL_SIZE, DEFAULT_MIN_SIZE, DEFAULT_MAX_SIZE, 0, targetBytes);
+    }
+
+    /**
+     * @return the chunk size currently chosen
+     */
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    /**
+     * Record the result of writing a chunk, and adjust the chunk size accordingly
+     * @param numDocs the number of documents in the chunk
+     * @param numBytes the (estimated) number of bytes encoded for the chunk
+     * @param elapsedNanos how long writing the chunk took
+     */
+    public synchronized void record(int numDocs, long numBytes, long elapsedNanos) {
+        if (numDocs <= 0) {
+            return;
+        }
+        elapsedNanos = Math.max(elapsedNanos, 1);
+
+        numChunks++;
+        totalDocs += numDocs;
+        totalBytes += numBytes;
+        lastLatencyMillis = elapsedNanos / 1000000d;
+
+        double seconds = elapsedNanos / 1000000000d;
+        docsPerSecond = smooth(docsPerSecond, numDocs / seconds);
+        bytesPerSecond = smooth(bytesPerSecond, numBytes / seconds);
+
+        // the ratio between the budget and what we've actually seen - the tighter budget wins
+        double ratio = Double.MAX_VALUE;
+        if (targetLatencyNanos > 0) {
+            ratio = Math.min(ratio, (double) targetLatencyNanos / elapsedNanos);
+        }
+        if (targetBytes > 0 && numBytes > 0) {
+            ratio = Math.min(ratio, (double) targetBytes / numBytes);
+        }
+        if (ratio == Double.MAX_VALUE) {
+            return;
+        }
+
+        // don't move more than x2 or x0.5 per chunk, and only half way towards the ideal size
+        ratio = Math.max(0.5, Math.min(2.0, ratio));
+        double step = (numDocs * ratio - chunkSize) / 2;
+        if (Math.abs(step) < 0.25) {
+            return;
+        }
+        chunkSize = clamp(chunkSize + (int) (step > 0 ? Math.ceil(step) : Math.floor(step)));
+    }
+
+    private double smooth(double current, double sample) {
+        return numChunks == 1 ? sample : current * (1 - SMOOTHING) + sample * SMOOTHING;
+    }
+
+    private int clamp(int size) {
+        return Math.max(minSize, Math.min(maxSize, size));
+    }
+
+    /**
+     * @return the smoothed write throughput of a single writer, in documents per second
+     */
+    public synchronized double getDocsPerSecond() {
+        return docsPerSecond;
+    }
+
+    /**
+     * @return the smoothed write throughput of a single writer, in (estimated) bytes per second
+     */
+    public synchronized double getBytesPerSecond() {
+        return bytesPerSecond;
+    }
+
+    /**
+     * @return how long writing the last chunk took, in milliseconds
+     */
+    public synchronized double getLastLatencyMillis() {
+        return lastLatencyMillis;
+    }
+
+    /**
+     * @return the total number of documents written so far
+     */
+    public synchronized long getTotalDocs() {
+        return totalDocs;
+    }
+
+    /**
+     * @return the total (estimated) number of bytes written so far
+     */
+    public synchronized long getTotalBytes() {
+        return totalBytes;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("AdaptiveChunkSize(size: %d, last latency: %.02fms, %.02fdocs/sec, %.02fbytes/sec)",
+                chunkSize, lastLatencyMillis, docsPerSecond, bytesPerSecond);
+    }
+}
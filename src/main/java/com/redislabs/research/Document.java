@@ -76,4 +76,27 @@ public class Document implements Serializable {
     public boolean hasProperty(String key) {
         return properties.containsKey(key);
     }
+
+    /**
+     * Estimate how many bytes this document takes when encoded. This is a rough, cheap approximation used to
+     * balance write batches, not an exact size
+     * @return the approximate encoded size of the document
+     */
+    public int estimateSize() {
+        int size = id.length() + 4;
+        for (Map.Entry<String, Object> e : properties.entrySet()) {
+            size += e.getKey().length();
+            Object v = e.getValue();
+            if (v instanceof String) {
+                size += ((String) v).length();
+            } else if (v instanceof Number) {
+                size += 8;
+            } else if (v instanceof Object[]) {
+                size += 8 * ((Object[]) v).length;
+            } else if (v != null) {
+                size += v.toString().length();
+            }
+        }
+        return size;
+    }
 }
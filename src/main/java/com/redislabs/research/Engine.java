@@ -1,12 +1,17 @@
 package com.redislabs.research;
 
 import com.redislabs.research.errors.IndexNotFoundException;
+import com.redislabs.research.errors.IndexingException;
 import com.redislabs.research.errors.SearchException;
 import redis.clients.jedis.exceptions.JedisAskDataException;
 
 import java.io.EOFException;
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 /**
  * Engine is a high level API encapsulating indexing, storing and retrieving document in a unified way.
@@ -19,7 +24,17 @@ public class Engine {
 
     protected DocumentStore store;
 
+    /**
+     * The target id used to report store failures in an {@link IndexingException}
+     */
+    public static final String STORE_TARGET = "store";
+
+    // if set, writes are fanned out to the store and all indexes concurrently on this executor
+    protected ExecutorService executor;
 
+    // the number of workers writing chunks of a document stream, and how many chunks may wait for them
+    protected int streamWorkers = 1;
+    protected int maxPendingChunks = 0;
 
     /**
      * Create a new engine. Pass a document store and the indexes you want to use.
@@ -33,6 +48,38 @@ public class Engine {
         }
     }
 
+    /**
+     * Set an executor to write to the store and each of the indexes in parallel. put() and index() then submit one
+     * task per target and wait for all of them, so the latency of a write is that of the slowest target rather than
+     * the sum of all of them. Pass null to go back to sequential writes.
+     *
+     * The executor should have at least as many threads as there are targets (indexes + store), and must not be
+     * the same executor that calls put() or index(), or it might deadlock waiting on itself.
+     * @param executor the executor to run writes on
+     * @return the engine itself, for builder-style syntax
+     */
+    public Engine setExecutor(ExecutorService executor) {
+        this.executor = executor;
+        return this;
+    }
+
+    /**
+     * Write document streams with a staged pipeline: the calling thread reads the stream and cuts it into chunks,
+     * while a pool of workers encodes and writes them to redis concurrently. The number of chunks waiting for the
+     * workers is bounded, so memory usage stays capped at about (workers + maxPendingChunks) * chunkSize documents.
+     * @param workers the number of concurrent writers. 1 means reading and writing in the calling thread
+     * @param maxPendingChunks how many chunks can be read ahead of the workers before reading blocks
+     * @return the engine itself, for builder-style syntax
+     */
+    public Engine setStreamConcurrency(int workers, int maxPendingChunks) {
+        if (workers < 1 || maxPendingChunks < 1) {
+            throw new IllegalArgumentException("Stream workers and pending chunks must be positive");
+        }
+        this.streamWorkers = workers;
+        this.maxPendingChunks = maxPendingChunks;
+        return this;
+    }
+
     /**
      * Put save a list of documents into the store and indexes them in the engine's indexes
      * @param docs a list of a list of documents to index
@@ -40,6 +87,11 @@ public class Engine {
      */
     public void put(Document... docs) throws IOException {
 
+        if (executor != null) {
+            fanOut(docs, true);
+            return;
+        }
+
         store.store(docs);
 
         index(docs);
@@ -54,11 +106,60 @@ public class Engine {
      * @throws IOException
      */
     public void index(Document ...docs) throws IOException {
+        if (executor != null) {
+            fanOut(docs, false);
+            return;
+        }
         for (Index idx : indexes.values()) {
             idx.index(docs);
         }
     }
 
+    /**
+     * Write the documents to all the indexes - and optionally the store - concurrently, and wait for all writes
+     * to finish.
+     * @throws IndexingException if any of the targets failed, with the errors of all failed targets
+     */
+    private void fanOut(final Document[] docs, boolean doStore) throws IOException {
+
+        Map<String, Future<?>> futures = new LinkedHashMap<>(indexes.size() + 1);
+
+        if (doStore) {
+            futures.put(STORE_TARGET, executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    store.store(docs);
+                    return null;
+                }
+            }));
+        }
+        for (final Index idx : indexes.values()) {
+            futures.put(idx.id(), executor.submit(new Callable<Boolean>() {
+                @Override
+                public Boolean call() throws Exception {
+                    return idx.index(docs);
+                }
+            }));
+        }
+
+        // wait for all the targets, even if some of them failed, so we can report all failures together
+        Map<String, Throwable> failures = new LinkedHashMap<>();
+        for (Map.Entry<String, Future<?>> entry : futures.entrySet()) {
+            try {
+                entry.getValue().get();
+            } catch (ExecutionException e) {
+                failures.put(entry.getKey(), e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                failures.put(entry.getKey(), e);
+            }
+        }
+
+        if (!failures.isEmpty()) {
+            throw new IndexingException(failures);
+        }
+    }
+
     /**
      * Iteratively index a DocumentStream - without saving the documents to the store, just putting them in the engine's
      * indexes.
@@ -69,7 +170,7 @@ public class Engine {
      */
     public void index(DocumentStream stream, int chunkSize) throws IOException {
 
-        handleStream(stream,chunkSize, false);
+        handleStream(stream,chunkSize, null, false);
     }
     /**
      * Iteratively save index a DocumentStream - also saving the documents to the store
@@ -79,14 +180,93 @@ public class Engine {
      * @throws IOException
      */
     public void put(DocumentStream stream, int chunkSize) throws IOException {
-        handleStream(stream,chunkSize, true);
+        handleStream(stream,chunkSize, null, true);
     }
 
     /**
-     * Internal handling of doc stream - used for either indexing only or saving+indexing
+     * Iteratively index a DocumentStream without saving the documents to the store, adjusting the chunk size
+     * while indexing to meet the latency or byte budget of the given AdaptiveChunkSize
+     * @param stream a DocumentStream providing documents to index
+     * @param chunkSize the adaptive chunk size. After indexing it exposes the size it chose and the throughput
+     *                  it observed
+     * @throws IOException
      */
-    private void handleStream(DocumentStream stream, int chunkSize, boolean doStore) throws IOException {
+    public void index(DocumentStream stream, AdaptiveChunkSize chunkSize) throws IOException {
+        handleStream(stream, chunkSize.getChunkSize(), chunkSize, false);
+    }
 
+    /**
+     * Iteratively save and index a DocumentStream, adjusting the chunk size while indexing to meet the latency or
+     * byte budget of the given AdaptiveChunkSize
+     * @param stream a DocumentStream providing documents to index
+     * @param chunkSize the adaptive chunk size. After indexing it exposes the size it chose and the throughput
+     *                  it observed
+     * @throws IOException
+     */
+    public void put(DocumentStream stream, AdaptiveChunkSize chunkSize) throws IOException {
+        handleStream(stream, chunkSize.getChunkSize(), chunkSize, true);
+    }
+
+    /**
+     * Index a SplittableDocumentStream with several threads, without saving the documents to the store.
+     * The stream is split into up to parallelism streams, each read by its own thread, and their chunks are written
+     * by a shared pool of workers
+     * @param stream a splittable stream providing documents to index
+     * @param chunkSize the size of the document chunk we want to flush as one transaction to redis.
+     * @param parallelism the maximal number of streams read concurrently
+     * @throws IOException
+     */
+    public void index(SplittableDocumentStream stream, int chunkSize, int parallelism) throws IOException {
+        handleSplittable(stream, chunkSize, parallelism, false);
+    }
+
+    /**
+     * Save and index a SplittableDocumentStream with several threads.
+     * The stream is split into up to parallelism streams, each read by its own thread, and their chunks are written
+     * by a shared pool of workers
+     * @param stream a splittable stream providing documents to index
+     * @param chunkSize the size of the document chunk we want to flush as one transaction to redis.
+     * @param parallelism the maximal number of streams read concurrently
+     * @throws IOException
+     */
+    public void put(SplittableDocumentStream stream, int chunkSize, int parallelism) throws IOException {
+        handleSplittable(stream, chunkSize, parallelism, true);
+    }
+
+    private void handleSplittable(SplittableDocumentStream stream, int chunkSize, int parallelism, boolean doStore)
+            throws IOException {
+
+        // keep splitting all the streams we have until we have enough or none of them can be split
+        List<SplittableDocumentStream> streams = new ArrayList<>(parallelism);
+        streams.add(stream);
+        boolean split = true;
+        while (split && streams.size() < parallelism) {
+            split = false;
+            for (int i = streams.size() - 1; i >= 0 && streams.size() < parallelism; i--) {
+                SplittableDocumentStream s = streams.get(i).trySplit();
+                if (s != null) {
+                    streams.add(s);
+                    split = true;
+                }
+            }
+        }
+
+        int workers = Math.max(streamWorkers, streams.size());
+        int pending = maxPendingChunks > 0 ? maxPendingChunks : workers;
+        new IngestPipeline(this, workers, pending).run(streams, chunkSize, null, doStore);
+    }
+
+    /**
+     * Internal handling of doc stream - used for either indexing only or saving+indexing.
+     * If sizer is not null, each chunk is as big as it says, otherwise all chunks are chunkSize big
+     */
+    private void handleStream(DocumentStream stream, int chunkSize, AdaptiveChunkSize sizer, boolean doStore)
+            throws IOException {
+
+        if (streamWorkers > 1) {
+            new IngestPipeline(this, streamWorkers, maxPendingChunks).run(stream, chunkSize, sizer, doStore);
+            return;
+        }
 
         Document[] docs = new Document[chunkSize];
         int i = 0;
@@ -99,24 +279,43 @@ public class Engine {
             i++;
 
             // evert <chunkSize> iterations - flush all documents
-            if (i == chunkSize) {
-                if (doStore) {
-                    put(docs);
-                } else {
-                    index(docs);
-                }
+            if (i == docs.length) {
+                flush(docs, doStore, sizer);
                 i=0;
+                if (sizer != null && sizer.getChunkSize() != docs.length) {
+                    docs = new Document[sizer.getChunkSize()];
+                }
             }
         }
         // flush anything remaining
         if (i > 0) {
-            docs = Arrays.copyOfRange(docs, 0, i);
-            if (doStore) {
-                put(docs);
-            } else {
-                index(docs);
+            flush(Arrays.copyOfRange(docs, 0, i), doStore, sizer);
+        }
+    }
+
+    /**
+     * Write a chunk of documents read from a stream - either index it or save+index it.
+     * If sizer is not null, it is fed with the time it took and the approximate size of the chunk
+     */
+    void flush(Document[] docs, boolean doStore, AdaptiveChunkSize sizer) throws IOException {
+
+        long bytes = 0;
+        if (sizer != null) {
+            for (Document doc : docs) {
+                bytes += doc.estimateSize();
             }
         }
+        long start = System.nanoTime();
+
+        if (doStore) {
+            put(docs);
+        } else {
+            index(docs);
+        }
+
+        if (sizer != null) {
+            sizer.record(docs.length, bytes, System.nanoTime() - start);
+        }
     }
 
     /**
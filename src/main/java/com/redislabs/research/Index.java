@@ -14,6 +14,11 @@ public interface Index  {
     public class Entry implements Comparable<Entry> {
         public String id;
         public double score;
+        /**
+         * The bytes the entry was sorted by, if the index sorted it lexically by a field, or null. Entries of
+         * several indexes are merged by comparing them as unsigned bytes
+         */
+        public byte[] sortKey;
         public Entry(String id, double score) {
             this.id = id;
             this.score = score;
@@ -0,0 +1,229 @@
+package com.redislabs.research;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ * IngestPipeline is a staged, back-pressured pipeline for writing a DocumentStream to an engine.
+ *
+ * The calling thread is the reader stage: it reads documents from the stream and cuts them into chunks. When the
+ * pipeline is given several streams, each of them is read by a thread of its own, all feeding the same workers.
+ * Chunks are handed through a bounded queue to a pool of workers, each of which encodes its chunk and syncs it to
+ * redis through the engine. This way reading, encoding and network I/O of different chunks overlap.
+ *
+ * Since the queue is bounded, at most (queueCapacity + numWorkers) chunks are held in memory at any given time,
+ * and no more than numWorkers chunks are in flight to redis. When the workers fall behind, the reader blocks.
+ */
+class IngestPipeline {
+
+    // end of stream marker, one is sent to each worker
+    private static final Document[] END = new Document[0];
+
+    private final Engine engine;
+    private final int numWorkers;
+    private final BlockingQueue<Document[]> queue;
+
+    // the first error raised by a worker. once set, we stop reading and the workers just drain the queue
+    private volatile Throwable failure;
+
+    /**
+     * Create a new pipeline
+     * @param engine the engine we write chunks to
+     * @param numWorkers the number of encoding/writing workers
+     * @param queueCapacity the maximal number of chunks waiting for a worker
+     */
+    IngestPipeline(Engine engine, int numWorkers, int queueCapacity) {
+        this.engine = engine;
+        this.numWorkers = numWorkers;
+        this.queue = new ArrayBlockingQueue<>(queueCapacity);
+    }
+
+    /**
+     * Read the stream to its end, writing it in chunks, and wait for all chunks to be written
+     * @param stream the stream to read
+     * @param chunkSize the number of documents in each chunk
+     * @param sizer if not null, it decides the size of each chunk instead of chunkSize, and is fed by the workers
+     * @param doStore whether to save the documents to the store as well, or just index them
+     * @throws IOException if reading or writing failed
+     */
+    void run(DocumentStream stream, int chunkSize, AdaptiveChunkSize sizer, boolean doStore) throws IOException {
+        run(Collections.singletonList(stream), chunkSize, sizer, doStore);
+    }
+
+    /**
+     * Read several streams concurrently to their end, writing them in chunks, and wait for all chunks to be written
+     * @param streams the streams to read, each one is read by a single thread
+     * @param chunkSize the number of documents in each chunk
+     * @param sizer if not null, it decides the size of each chunk instead of chunkSize, and is fed by the workers
+     * @param doStore whether to save the documents to the store as well, or just index them
+     * @throws IOException if reading or writing failed
+     */
+    void run(List<? extends DocumentStream> streams, final int chunkSize, final AdaptiveChunkSize sizer,
+             final boolean doStore) throws IOException {
+
+        ExecutorService workers = Executors.newFixedThreadPool(numWorkers);
+        for (int i = 0; i < numWorkers; i++) {
+            workers.submit(new Runnable() {
+                @Override
+                public void run() {
+                    work(sizer, doStore);
+                }
+            });
+        }
+
+        try {
+            if (streams.size() == 1) {
+                read(streams.get(0), chunkSize, sizer);
+            } else {
+                readAll(streams, chunkSize, sizer);
+            }
+        } finally {
+            // the workers keep draining the queue even after a failure, so this will not block forever
+            boolean ended = false;
+            try {
+                for (int i = 0; i < numWorkers; i++) {
+                    submit(END);
+                }
+                ended = true;
+            } finally {
+                if (!ended) {
+                    // we could not tell the workers to stop, so interrupt them out of their wait on the queue
+                    workers.shutdownNow();
+                }
+            }
+            workers.shutdown();
+            try {
+                workers.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                workers.shutdownNow();
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted waiting for ingestion workers");
+            }
+        }
+
+        if (failure != null) {
+            if (failure instanceof IOException) {
+                throw (IOException) failure;
+            }
+            throw new IOException(failure);
+        }
+    }
+
+    /**
+     * The reader stage - cut the stream into chunks and queue them for the workers
+     */
+    private void read(DocumentStream stream, int chunkSize, AdaptiveChunkSize sizer) throws IOException {
+
+        Document[] docs = new Document[chunkSize];
+        int i = 0;
+        while (failure == null && stream.hasNext()) {
+            try {
+                docs[i] = stream.next();
+            } catch (EOFException e) { //valid case where next() has been called when hasNext() hasn't
+                break;
+            }
+            i++;
+
+            if (i == docs.length) {
+                submit(docs);
+                // the chunk now belongs to a worker, we can't reuse it
+                docs = new Document[sizer != null ? sizer.getChunkSize() : chunkSize];
+                i = 0;
+            }
+        }
+        // flush anything remaining
+        if (i > 0 && failure == null) {
+            submit(Arrays.copyOfRange(docs, 0, i));
+        }
+    }
+
+    /**
+     * Run a reader stage for each of the streams, and wait for all of them to finish
+     */
+    private void readAll(List<? extends DocumentStream> streams, final int chunkSize, final AdaptiveChunkSize sizer)
+            throws IOException {
+
+        ExecutorService readers = Executors.newFixedThreadPool(streams.size());
+        List<Future<Void>> futures = new ArrayList<>(streams.size());
+        for (final DocumentStream stream : streams) {
+            futures.add(readers.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    read(stream, chunkSize, sizer);
+                    return null;
+                }
+            }));
+        }
+        readers.shutdown();
+
+        try {
+            for (Future<Void> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    // this also stops the other readers
+                    fail(e.getCause());
+                }
+            }
+        } catch (InterruptedException e) {
+            readers.shutdownNow();
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for stream readers");
+        }
+    }
+
+    /**
+     * Queue a chunk, blocking if the workers are behind
+     */
+    private void submit(Document[] chunk) throws InterruptedIOException {
+        try {
+            queue.put(chunk);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted queueing documents");
+        }
+    }
+
+    /**
+     * The worker stage - take chunks from the queue and write them until we see the end marker
+     */
+    private void work(AdaptiveChunkSize sizer, boolean doStore) {
+        while (true) {
+            Document[] chunk;
+            try {
+                chunk = queue.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            if (chunk == END) {
+                return;
+            }
+            // after a failure we just drain the queue, so the reader never blocks on a full queue
+            if (failure != null) {
+                continue;
+            }
+
+            try {
+                engine.flush(chunk, doStore, sizer);
+            } catch (Throwable t) {
+                fail(t);
+            }
+        }
+    }
+
+    /**
+     * Record the first failure of any stage
+     */
+    private synchronized void fail(Throwable t) {
+        if (failure == null) {
+            failure = t;
+        }
+    }
+}
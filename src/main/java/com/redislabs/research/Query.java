@@ -15,6 +15,7 @@ public class Query {
         Equals,
         In,
         Prefix,
+        FuzzyPrefix,
         Greater,
         GreaterEquals,
         Less,
@@ -56,7 +57,10 @@ public class Query {
      * Defines how the result is sorted and paged
      */
     public static class Sorting {
-        /** what fields are we sorting by */
+        /** sort by the documents' score */
+        public static final String SCORE = "score";
+
+        /** what fields are we sorting by. If empty, the index's natural order is used, best scores first */
         public String by;
         /** is the sorting ascending or not */
         public Boolean ascending;
@@ -146,6 +150,22 @@ public class Query {
         return this;
     }
 
+    /**
+     * Create a fuzzy prefix filter, filtering records where property starts with a string that is within a few
+     * edits (insertions, deletions, substitutions or transpositions) of prefix
+     * @param property the name of the property filtered by
+     * @param prefix the prefix to search for, possibly mistyped
+     * @param maxEdits the maximal number of edits, 1 or 2
+     * @return the query itself, for builder-style syntax
+     */
+    public Query filterFuzzyPrefix(String property, String prefix, int maxEdits) {
+        if (maxEdits < 1 || maxEdits > 2) {
+            throw new RuntimeException("Fuzzy prefix filters support 1 or 2 edits");
+        }
+        filters.add(new Filter<Object>(property, Op.FuzzyPrefix, prefix, maxEdits));
+        return this;
+    }
+
     /**
      * Create an IN filter, filtering only records where property is one of the given values
      * @param property the name of the property filtered by
@@ -32,12 +32,66 @@ public class Spec {
 
     public static class PrefixField extends  Field {
 
+        /** The default score quantiles dividing prefix entries into buckets, best bucket first */
+        public static final double[] DEFAULT_QUANTILES = {0.99, 0.95, 0.90, 0.5};
+
+        /** The maximal number of score buckets */
+        public static final int MAX_BUCKETS = 32;
+
         public boolean indexSuffixes;
 
+        /**
+         * The score quantiles dividing entries into buckets, in descending order. Entries scoring above the
+         * first quantile go to the first bucket, and entries below the last one go to the bottom bucket
+         */
+        public double[] quantiles = DEFAULT_QUANTILES;
+
         public PrefixField(String name, boolean indexSuffixes) {
             super(name, IndexingType.Prefix);
             this.indexSuffixes = indexSuffixes;
         }
+
+        /**
+         * Divide the entries into score buckets by explicit quantiles
+         * @param quantiles the quantiles, each between 0 and 1
+         * @return the field itself
+         */
+        public PrefixField setQuantiles(double... quantiles) {
+            if (quantiles.length + 1 > MAX_BUCKETS) {
+                throw new RuntimeException("At most " + MAX_BUCKETS + " buckets are supported");
+            }
+            double[] q = quantiles.clone();
+            Arrays.sort(q);
+            for (int i = 0; i < q.length; i++) {
+                if (q[i] <= 0 || q[i] >= 1) {
+                    throw new RuntimeException("Quantiles must be between 0 and 1, got " + q[i]);
+                }
+            }
+            // we want them in descending order
+            this.quantiles = new double[q.length];
+            for (int i = 0; i < q.length; i++) {
+                this.quantiles[i] = q[q.length - 1 - i];
+            }
+            return this;
+        }
+
+        /**
+         * Divide the entries into a number of log-spaced score buckets, each holding half the entries of the
+         * bucket below it, i.e. quantiles of 0.5, 0.75, 0.875 etc. This keeps the top buckets small for very
+         * common prefixes
+         * @param numBuckets the number of buckets, at least 1
+         * @return the field itself
+         */
+        public PrefixField setBuckets(int numBuckets) {
+            if (numBuckets < 1) {
+                throw new RuntimeException("At least one bucket is required");
+            }
+            double[] q = new double[numBuckets - 1];
+            for (int i = 0; i < q.length; i++) {
+                q[i] = 1 - Math.pow(2, -(q.length - i));
+            }
+            return setQuantiles(q);
+        }
     }
 
     public static PrefixField prefix(String name, boolean indexSuffixes) {
@@ -57,8 +111,34 @@ public class Spec {
         return new GeoField(name, precision);
     }
 
-    public static Field numeric(String name) {
-        return new Field(name, IndexingType.Numeric);
+    public static class NumericField extends Field {
+
+        /**
+         * How numbers are encoded in prefix indexes. All of them preserve numeric order
+         */
+        public enum Encoding {
+            /** 8 bytes, for any number */
+            Double,
+            /** 8 bytes, for integers */
+            Long,
+            /** 1 to 9 bytes, for integers that are usually small */
+            Varint,
+        }
+
+        public Encoding encoding;
+
+        public NumericField(String name, Encoding encoding) {
+            super(name, IndexingType.Numeric);
+            this.encoding = encoding;
+        }
+    }
+
+    public static NumericField numeric(String name) {
+        return new NumericField(name, NumericField.Encoding.Double);
+    }
+
+    public static NumericField numeric(String name, NumericField.Encoding encoding) {
+        return new NumericField(name, encoding);
     }
 
 
@@ -0,0 +1,19 @@
+package com.redislabs.research;
+
+/**
+ * A SplittableDocumentStream is a DocumentStream that can hand off part of its remaining documents to a new stream,
+ * so that the engine can read it with several threads at once.
+ *
+ * Each stream is still read by a single thread, but after a successful split the two streams are independent and
+ * together yield exactly the documents the original stream would have yielded.
+ */
+public interface SplittableDocumentStream extends DocumentStream {
+
+    /**
+     * Split off part of the documents this stream has not yet returned into a new stream.
+     * This is called before reading starts, from the thread that owns the stream.
+     * @return a new stream holding some of the remaining documents, or null if the stream can't be split (e.g. if
+     * it's too small to be worth it)
+     */
+    SplittableDocumentStream trySplit();
+}
@@ -0,0 +1,335 @@
+package com.redislabs.research;
+
+import java.io.Closeable;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.*;
+
+/**
+ * WriteBuffer coalesces many small concurrent writes to an engine into shared batches (group commit).
+ *
+ * Instead of each caller opening and syncing its own pipeline for a document or two, callers queue their documents
+ * and get a future. Flusher threads collect queued documents into a batch, which is written when it reaches
+ * maxBatchSize documents or when the oldest queued document has waited maxDelayMillis, whichever comes first.
+ * While a batch is being written the next one accumulates, and when it's acknowledged, the futures of all the
+ * callers in it are completed - or failed with the batch's error.
+ *
+ * If callers queue documents faster than they can be written, put() and index() block once the number of queued
+ * documents reaches the given maximum.
+ *
+ * Writes of the same document are applied in the order they were queued: a batch only reorders the put() and
+ * index() writes of different documents, and a flusher does not take a write while another batch is still writing
+ * one of its documents.
+ */
+public class WriteBuffer implements Closeable {
+
+    /**
+     * A future completed when the batch holding a write is acknowledged
+     */
+    private static class WriteFuture implements Future<Void> {
+
+        private final CountDownLatch done = new CountDownLatch(1);
+        private volatile Throwable error;
+
+        void complete(Throwable error) {
+            this.error = error;
+            done.countDown();
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            return false;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return false;
+        }
+
+        @Override
+        public boolean isDone() {
+            return done.getCount() == 0;
+        }
+
+        @Override
+        public Void get() throws InterruptedException, ExecutionException {
+            done.await();
+            return result();
+        }
+
+        @Override
+        public Void get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException,
+                TimeoutException {
+            if (!done.await(timeout, unit)) {
+                throw new TimeoutException();
+            }
+            return result();
+        }
+
+        private Void result() throws ExecutionException {
+            if (error != null) {
+                throw new ExecutionException(error);
+            }
+            return null;
+        }
+    }
+
+    /**
+     * A single caller's queued write
+     */
+    private static class Write {
+        final Document[] docs;
+        final boolean doStore;
+        final long queuedAt;
+        final WriteFuture future = new WriteFuture();
+
+        Write(Document[] docs, boolean doStore) {
+            this.docs = docs;
+            this.doStore = doStore;
+            this.queuedAt = System.nanoTime();
+        }
+    }
+
+    private final Engine engine;
+    private final int maxBatchSize;
+    private final long maxDelayNanos;
+    private final int maxQueuedDocs;
+
+    private final ArrayDeque<Write> queue = new ArrayDeque<>();
+    private int queuedDocs = 0;
+    private boolean closed = false;
+    // the ids of the documents in the batches being written
+    private final Set<String> inFlight = new HashSet<>();
+
+    private final List<Thread> flushers;
+
+    /**
+     * Create a new write buffer
+     * @param engine the engine we write batches to
+     * @param maxBatchSize the number of documents that triggers a flush
+     * @param maxDelayMillis the maximal time a document waits for its batch to fill up
+     * @param numFlushers the number of batches that can be written concurrently
+     * @param maxQueuedDocs the number of queued documents above which callers block
+     */
+    public WriteBuffer(Engine engine, int maxBatchSize, long maxDelayMillis, int numFlushers, int maxQueuedDocs) {
+        this.engine = engine;
+        this.maxBatchSize = maxBatchSize;
+        this.maxDelayNanos = TimeUnit.MILLISECONDS.toNanos(maxDelayMillis);
+        this.maxQueuedDocs = Math.max(maxQueuedDocs, maxBatchSize);
+
+        flushers = new ArrayList<>(numFlushers);
+        for (int i = 0; i < numFlushers; i++) {
+            Thread t = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    flushLoop();
+                }
+            }, "research-write-buffer-" + i);
+            t.setDaemon(true);
+            flushers.add(t);
+            t.start();
+        }
+    }
+
+    /**
+     * Create a write buffer with a single flusher, queueing up to 10 batches
+     * @param engine the engine we write batches to
+     * @param maxBatchSize the number of documents that triggers a flush
+     * @param maxDelayMillis the maximal time a document waits for its batch to fill up
+     */
+    public WriteBuffer(Engine engine, int maxBatchSize, long maxDelayMillis) {
+        this(engine, maxBatchSize, maxDelayMillis, 1, maxBatchSize * 10);
+    }
+
+    /**
+     * Queue documents to be saved to the store and indexed, as Engine.put() does
+     * @param docs the documents to write
+     * @return a future completed when the documents' batch is written
+     * @throws InterruptedException if interrupted while waiting for room in the queue
+     */
+    public Future<Void> put(Document... docs) throws InterruptedException {
+        return enqueue(new Write(docs, true));
+    }
+
+    /**
+     * Queue documents to be indexed without saving them to the store, as Engine.index() does
+     * @param docs the documents to write
+     * @return a future completed when the documents' batch is written
+     * @throws InterruptedException if interrupted while waiting for room in the queue
+     */
+    public Future<Void> index(Document... docs) throws InterruptedException {
+        return enqueue(new Write(docs, false));
+    }
+
+    private synchronized Future<Void> enqueue(Write w) throws InterruptedException {
+        while (!closed && queuedDocs > 0 && queuedDocs + w.docs.length > maxQueuedDocs) {
+            wait();
+        }
+        if (closed) {
+            throw new IllegalStateException("Write buffer is closed");
+        }
+        queue.add(w);
+        queuedDocs += w.docs.length;
+        notifyAll();
+        return w.future;
+    }
+
+    /**
+     * Flush everything queued and stop the flushers. Waits for all queued writes to be acknowledged
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+        }
+        for (Thread t : flushers) {
+            try {
+                t.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Wait until there's a batch to write and take it from the queue, or return null if we're closed and done
+     */
+    private synchronized List<Write> nextBatch() throws InterruptedException {
+        while (true) {
+            if (queue.isEmpty()) {
+                if (closed) {
+                    return null;
+                }
+                wait();
+                continue;
+            }
+            if (isInFlight(queue.peek())) {
+                // wait for the earlier batch writing some of its documents
+                wait();
+                continue;
+            }
+            long delay = queue.peek().queuedAt + maxDelayNanos - System.nanoTime();
+            if (queuedDocs >= maxBatchSize || delay <= 0 || closed) {
+                break;
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, delay);
+        }
+
+        // take whole writes until the batch is full - but always at least one. we stop at a write of documents
+        // that are still being written, so writes are never taken out of order
+        List<Write> batch = new ArrayList<>();
+        int size = 0;
+        while (!queue.isEmpty() && (batch.isEmpty() || size + queue.peek().docs.length <= maxBatchSize) &&
+                !isInFlight(queue.peek())) {
+            Write w = queue.poll();
+            batch.add(w);
+            size += w.docs.length;
+        }
+        for (Write w : batch) {
+            for (Document d : w.docs) {
+                inFlight.add(d.getId());
+            }
+        }
+        queuedDocs -= size;
+        // wake up blocked callers, and other flushers if there's more to write
+        notifyAll();
+        return batch;
+    }
+
+    private void flushLoop() {
+        while (true) {
+            List<Write> batch;
+            try {
+                batch = nextBatch();
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (batch == null) {
+                return;
+            }
+
+            // the put() and the index() writes are each written in a single call, unless a write of one kind
+            // has a document an earlier write of the other kind has. then everything before it is written first
+            List<Write> puts = new ArrayList<>();
+            List<Write> indexes = new ArrayList<>();
+            Set<String> putIds = new HashSet<>();
+            Set<String> indexIds = new HashSet<>();
+            for (Write w : batch) {
+                Set<String> other = w.doStore ? indexIds : putIds;
+                for (Document d : w.docs) {
+                    if (other.contains(d.getId())) {
+                        write(puts, true);
+                        write(indexes, false);
+                        puts.clear();
+                        indexes.clear();
+                        putIds.clear();
+                        indexIds.clear();
+                        break;
+                    }
+                }
+                (w.doStore ? puts : indexes).add(w);
+                for (Document d : w.docs) {
+                    (w.doStore ? putIds : indexIds).add(d.getId());
+                }
+            }
+            write(puts, true);
+            write(indexes, false);
+            done(batch);
+        }
+    }
+
+    /**
+     * @return true if a batch being written holds some of the write's documents
+     */
+    private boolean isInFlight(Write w) {
+        for (Document d : w.docs) {
+            if (inFlight.contains(d.getId())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Release the documents of a written batch, letting the flushers take later writes of them
+     */
+    private synchronized void done(List<Write> batch) {
+        for (Write w : batch) {
+            for (Document d : w.docs) {
+                inFlight.remove(d.getId());
+            }
+        }
+        notifyAll();
+    }
+
+    /**
+     * Write the documents of either put() or index() writes in a single engine call, and complete their futures
+     */
+    private void write(List<Write> writes, boolean doStore) {
+        if (writes.isEmpty()) {
+            return;
+        }
+
+        List<Document> docs = new ArrayList<>();
+        for (Write w : writes) {
+            for (Document d : w.docs) {
+                docs.add(d);
+            }
+        }
+
+        Throwable error = null;
+        try {
+            engine.flush(docs.toArray(new Document[docs.size()]), doStore, null);
+        } catch (Throwable t) {
+            error = t;
+        }
+        for (Write w : writes) {
+            w.future.complete(error);
+        }
+    }
+}
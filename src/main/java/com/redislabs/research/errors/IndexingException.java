@@ -0,0 +1,32 @@
+package com.redislabs.research.errors;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * Thrown when writing documents to one or more targets (the document store or any of the indexes) failed.
+ * The failures are reported per target, keyed by the target's id, so callers can tell which writes went through.
+ */
+public class IndexingException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final Map<String, Throwable> failures;
+
+    public IndexingException(Map<String, Throwable> failures) {
+        super("Writing documents failed for " + failures.keySet());
+        this.failures = Collections.unmodifiableMap(failures);
+        for (Throwable t : failures.values()) {
+            addSuppressed(t);
+        }
+    }
+
+    /**
+     * @return a map of target id (index id, or {@link com.redislabs.research.Engine#STORE_TARGET} for the store)
+     * to the error that target raised
+     */
+    public Map<String, Throwable> getFailures() {
+        return failures;
+    }
+}
@@ -0,0 +1,220 @@
+package com.redislabs.research.io;
+
+import com.google.gson.Gson;
+import com.redislabs.research.Document;
+import com.redislabs.research.SplittableDocumentStream;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * JSONLinesStream reads documents from a file with one JSON encoded document per line, in the same format
+ * JSONStore saves them in, e.g. {"id":"doc1","score":1.0,"properties":{"title":"hello world"}}
+ *
+ * The file is read through memory mapped windows, and the stream can be split by byte range so big dump files can
+ * be read by several threads at once. A split that starts in the middle of a line leaves that line to the stream
+ * before it, so each line is read exactly once.
+ */
+public class JSONLinesStream implements SplittableDocumentStream, Closeable {
+
+    /** the size of the memory mapped window each stream reads through */
+    public static final int DEFAULT_WINDOW_SIZE = 64 * 1024 * 1024;
+
+    /** we don't split ranges smaller than this */
+    public static final long DEFAULT_MIN_SPLIT_SIZE = 4 * 1024 * 1024;
+
+    /**
+     * The file and channel, shared by all the streams split from the same file. The channel is closed when the last
+     * of them is done
+     */
+    private static class Source {
+        final RandomAccessFile file;
+        final FileChannel channel;
+        final long size;
+        final AtomicInteger refs = new AtomicInteger(1);
+        final Gson gson = new Gson();
+
+        Source(File f) throws IOException {
+            file = new RandomAccessFile(f, "r");
+            channel = file.getChannel();
+            size = channel.size();
+        }
+
+        void release() throws IOException {
+            if (refs.decrementAndGet() == 0) {
+                file.close();
+            }
+        }
+    }
+
+    private final Source source;
+    private final int windowSize;
+    private final long minSplitSize;
+
+    // the next byte to read, and the end of our byte range
+    private long pos;
+    private long end;
+    // false until we've skipped the line that the previous stream owns
+    private boolean aligned;
+    private boolean closed;
+
+    private MappedByteBuffer window;
+    private long windowStart;
+
+    private Document next;
+
+    /**
+     * Open a file for reading
+     * @param file the path of the JSON lines file
+     * @throws IOException
+     */
+    public JSONLinesStream(String file) throws IOException {
+        this(new File(file), DEFAULT_WINDOW_SIZE, DEFAULT_MIN_SPLIT_SIZE);
+    }
+
+    /**
+     * Open a file for reading
+     * @param file the JSON lines file
+     * @param windowSize the size of the memory mapped window, in bytes
+     * @param minSplitSize the minimal number of bytes left to read for the stream to be split
+     * @throws IOException
+     */
+    public JSONLinesStream(File file, int windowSize, long minSplitSize) throws IOException {
+        this(new Source(file), 0, -1, windowSize, minSplitSize);
+    }
+
+    private JSONLinesStream(Source source, long start, long end, int windowSize, long minSplitSize) {
+        this.source = source;
+        this.pos = start;
+        this.end = end < 0 ? source.size : end;
+        this.aligned = start == 0;
+        this.windowSize = windowSize;
+        this.minSplitSize = Math.max(1, minSplitSize);
+    }
+
+    @Override
+    public synchronized SplittableDocumentStream trySplit() {
+        if (closed || end - pos < minSplitSize * 2) {
+            return null;
+        }
+        long mid = pos + (end - pos) / 2;
+        source.refs.incrementAndGet();
+        JSONLinesStream ret = new JSONLinesStream(source, mid, end, windowSize, minSplitSize);
+        end = mid;
+        return ret;
+    }
+
+    @Override
+    public synchronized Document next() throws EOFException {
+        if (!hasNext()) {
+            throw new EOFException();
+        }
+        Document ret = next;
+        next = null;
+        return ret;
+    }
+
+    @Override
+    public synchronized boolean hasNext() {
+        if (next == null && !closed) {
+            try {
+                next = readDocument();
+                if (next == null) {
+                    close();
+                }
+            } catch (IOException e) {
+                throw new RuntimeException("Error reading " + e.getMessage(), e);
+            }
+        }
+        return next != null;
+    }
+
+    /**
+     * Release the stream's hold of the file. This is done automatically when the stream is exhausted
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (!closed) {
+            closed = true;
+            window = null;
+            source.release();
+        }
+    }
+
+    /**
+     * Read the next non empty line and decode it, or return null if we're past our range
+     */
+    private Document readDocument() throws IOException {
+        if (!aligned) {
+            aligned = true;
+            // a line starting before our range belongs to the previous stream. we start after the first newline
+            // at or after pos-1 - that is exactly pos if pos is the start of a line
+            long nl = indexOfNewline(pos - 1);
+            pos = nl < 0 ? source.size : nl + 1;
+        }
+
+        while (pos < end) {
+            long nl = indexOfNewline(pos);
+            long lineEnd = nl < 0 ? source.size : nl;
+            String line = decode(pos, lineEnd).trim();
+            pos = lineEnd + 1;
+
+            if (!line.isEmpty()) {
+                return source.gson.fromJson(line, Document.class);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Map a window of the file starting at the given offset, at least minLength bytes long if the file allows it
+     */
+    private void map(long from, long minLength) throws IOException {
+        long len = Math.min(Math.max(windowSize, minLength), source.size - from);
+        window = source.channel.map(FileChannel.MapMode.READ_ONLY, from, len);
+        windowStart = from;
+    }
+
+    /**
+     * Find the offset of the next newline in the file at or after the given offset, or -1 if there is none
+     */
+    private long indexOfNewline(long from) throws IOException {
+        long p = from;
+        while (p < source.size) {
+            if (window == null || p < windowStart || p >= windowStart + window.limit()) {
+                map(p, 0);
+            }
+            int limit = window.limit();
+            for (int i = (int) (p - windowStart); i < limit; i++) {
+                if (window.get(i) == '\n') {
+                    return windowStart + i;
+                }
+            }
+            p = windowStart + limit;
+        }
+        return -1;
+    }
+
+    /**
+     * Decode a UTF-8 string from a byte range of the file
+     */
+    private String decode(long from, long to) throws IOException {
+        int len = (int) (to - from);
+        if (window == null || from < windowStart || to > windowStart + window.limit()) {
+            map(from, len);
+        }
+        byte[] bytes = new byte[len];
+        ByteBuffer view = window.duplicate();
+        view.position((int) (from - windowStart));
+        view.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -1,12 +1,15 @@
 package com.redislabs.research.redis;
 
 
+import com.redislabs.research.Document;
 import com.redislabs.research.Index;
 import com.redislabs.research.Spec;
-import redis.clients.jedis.JedisPool;
-import redis.clients.jedis.JedisPoolConfig;
+import redis.clients.jedis.*;
 
 import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 /**
  * Created by dvirsky on 28/02/16.
@@ -16,6 +19,8 @@ public abstract class BaseIndex implements Index {
     protected JedisPool pool;
     Spec spec;
     String name;
+    // if set, documents are stored by internal integer ids from this dictionary
+    protected volatile IdDictionary idDictionary;
 
 
     public BaseIndex(String name, Spec spec, String redisURI) {
@@ -41,4 +46,174 @@ public abstract class BaseIndex implements Index {
     public String id() {
         return name;
     }
+
+    /**
+     * Store compact integer ids allocated by a dictionary instead of the documents' own ids. This must be set
+     * before anything is indexed, and must not be changed afterwards
+     *
+     * @param idDictionary the dictionary, possibly shared with other indexes
+     * @return the index itself
+     */
+    public BaseIndex setIdDictionary(IdDictionary idDictionary) {
+        this.idDictionary = idDictionary;
+        return this;
+    }
+
+    /**
+     * @return the internal ids of documents, allocating them in a single batch, or null if we have no dictionary
+     */
+    protected long[] internalIds(Document... docs) {
+        if (idDictionary == null) {
+            return null;
+        }
+        String[] ids = new String[docs.length];
+        for (int i = 0; i < docs.length; i++) {
+            ids[i] = docs[i].getId();
+        }
+        return idDictionary.allocate(ids);
+    }
+
+    /**
+     * Create result entries from internal ids, translating them back to external ids in a single batch.
+     * Ids the dictionary does not know are dropped
+     *
+     * @param ids the internal ids
+     * @param scores the entries' scores
+     * @return the entries
+     */
+    protected List<Entry> externalEntries(long[] ids, double[] scores) {
+        String[] external = idDictionary.resolve(ids);
+        List<Entry> ret = new ArrayList<>(ids.length);
+        for (int i = 0; i < ids.length; i++) {
+            if (external[i] != null) {
+                ret.add(new Entry(external[i], scores[i]));
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * The key of a document's reverse record, listing what the index wrote for it so it can be deleted by id
+     */
+    protected String recordKey(String docId) {
+        return "r:" + name + ":" + docId;
+    }
+
+    /**
+     * A lua snippet decoding a record written by encodeRecord() into a table named items.
+     * Scripts using it should have the record in a variable named rec
+     */
+    static final String DECODE_RECORD_LUA = "local items = {}\n" +
+            "local pos = 1\n" +
+            "while pos < #rec do\n" +
+            "    local len = string.byte(rec, pos) * 256 + string.byte(rec, pos + 1)\n" +
+            "    table.insert(items, string.sub(rec, pos + 2, pos + 1 + len))\n" +
+            "    pos = pos + 2 + len\n" +
+            "end\n";
+
+    /**
+     * Encode a list of items (entries or keys) into a compact reverse record - each item is prefixed by its
+     * length as a 2 byte big endian number
+     * @param items the items to encode, each shorter than 64KB
+     * @return the encoded record
+     */
+    static byte[] encodeRecord(List<byte[]> items) {
+        int len = 0;
+        for (byte[] item : items) {
+            len += item.length + 2;
+        }
+        byte[] ret = new byte[len];
+        int pos = 0;
+        for (byte[] item : items) {
+            if (item.length > 0xffff) {
+                throw new RuntimeException("Record item too long: " + item.length);
+            }
+            ret[pos++] = (byte) (item.length >>> 8);
+            ret[pos++] = (byte) item.length;
+            System.arraycopy(item, 0, ret, pos, item.length);
+            pos += item.length;
+        }
+        return ret;
+    }
+
+    /**
+     * Decode a record written by encodeRecord() back into its items
+     * @param record the encoded record
+     * @return the items of the record
+     */
+    static List<byte[]> decodeRecord(byte[] record) {
+        List<byte[]> ret = new ArrayList<>();
+        int pos = 0;
+        while (pos + 1 < record.length) {
+            int len = (record[pos] & 0xff) << 8 | (record[pos + 1] & 0xff);
+            ret.add(Arrays.copyOfRange(record, pos + 2, pos + 2 + len));
+            pos += 2 + len;
+        }
+        return ret;
+    }
+
+    /**
+     * Decides which of the keys matching a prefix belong to this index. Index names may contain the key separator,
+     * so the keys of an index named "name:x" match the prefixes of the index "name" as well
+     */
+    protected interface KeyFilter {
+        /**
+         * @param conn a connection to use for looking at the keys
+         * @param keys a batch of keys matching the prefix
+         * @return the keys of the batch that belong to this index
+         */
+        List<String> filter(Jedis conn, List<String> keys);
+    }
+
+    /**
+     * A filter accepting only the keys made of the prefix and a single part without separators, e.g. a token or
+     * a field name
+     */
+    protected static KeyFilter singlePart(final String prefix) {
+        return new KeyFilter() {
+            @Override
+            public List<String> filter(Jedis conn, List<String> keys) {
+                List<String> ret = new ArrayList<>(keys.size());
+                for (String key : keys) {
+                    if (key.indexOf(':', prefix.length()) < 0) {
+                        ret.add(key);
+                    }
+                }
+                return ret;
+            }
+        };
+    }
+
+    /**
+     * Delete the keys starting with a prefix, scanning and deleting them in batches
+     * @param prefix the literal key prefix
+     * @param filter selects the keys of each batch that are deleted
+     * @return the number of keys deleted
+     */
+    protected long deleteKeys(String prefix, KeyFilter filter) {
+        long deleted = 0;
+        ScanParams params = new ScanParams().match(escapePattern(prefix) + "*").count(1000);
+        try (Jedis conn = pool.getResource()) {
+            String cursor = ScanParams.SCAN_POINTER_START;
+            do {
+                ScanResult<String> res = conn.scan(cursor, params);
+                cursor = res.getStringCursor();
+                List<String> keys = res.getResult();
+                if (!keys.isEmpty()) {
+                    keys = filter.filter(conn, keys);
+                }
+                if (!keys.isEmpty()) {
+                    deleted += conn.del(keys.toArray(new String[keys.size()]));
+                }
+            } while (!ScanParams.SCAN_POINTER_START.equals(cursor));
+        }
+        return deleted;
+    }
+
+    /**
+     * Escape glob special characters, so the string is matched literally in a key pattern
+     */
+    protected static String escapePattern(String s) {
+        return s.replaceAll("([\\\\*?\\[\\]])", "\\\\$1");
+    }
 }
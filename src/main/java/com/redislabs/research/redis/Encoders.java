@@ -1,13 +1,12 @@
 package com.redislabs.research.redis;
 
 import ch.hsr.geohash.GeoHash;
+import com.redislabs.research.Spec;
 import com.redislabs.research.text.NaiveNormalizer;
 import com.redislabs.research.text.TextNormalizer;
 
-import java.io.ByteArrayOutputStream;
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 /**
@@ -16,35 +15,98 @@ import java.util.List;
 public class Encoders {
 
     /**
-     * Numeric is the encoder that encodes numeric types in big-endian, lexicographical order
+     * Numeric is the encoder that encodes numeric types in big-endian, lexicographical order.
+     * All numbers of a field are encoded the same way regardless of their java type, so the lexical order of the
+     * encoded values is the numeric order:
+     * <ul>
+     *     <li>Double - 8 bytes of IEEE 754 bits, with the sign bit flipped for positives and all bits for negatives</li>
+     *     <li>Long - 8 bytes of offset binary, i.e. two's complement with the sign bit flipped. fractions are truncated</li>
+     *     <li>Varint - like Long, but compact: a header byte of 0x80+n for positives or 0x7F-n for negatives,
+     *     followed by the n low bytes of the value that are not just sign extension</li>
+     * </ul>
      */
     public static class Numeric implements Encoder<Number> {
 
+        private final Spec.NumericField.Encoding encoding;
+
+        public Numeric() {
+            this(Spec.NumericField.Encoding.Double);
+        }
+
+        public Numeric(Spec.NumericField.Encoding encoding) {
+            this.encoding = encoding;
+        }
+
         @Override
         public List<byte[]> encode(Number num) {
 
-            long val = 0;
-            ByteBuffer buf = ByteBuffer.allocate(Long.SIZE/Byte.SIZE);
-            buf.order(ByteOrder.BIG_ENDIAN);
-            if (num instanceof Double) {
-                // TODO - this is wrong for negatives, fix this
-                buf.putLong(Double.doubleToRawLongBits((Double) num));
-            } else if (num instanceof Float) {
-                // we replace the buffer with a buffer for floats only
-                buf = ByteBuffer.allocate(Integer.SIZE/Byte.SIZE);
-                buf.order(ByteOrder.BIG_ENDIAN);
-                buf.putInt(Float.floatToIntBits((Float) num));
-            } else if (num instanceof Integer) {
-                buf.putLong(num.longValue());
-            } else if (num instanceof Long) {
-                buf.putLong((Long) num);
+            byte[] buf = new byte[width(num)];
+            write(num, buf, 0);
+
+            List<byte[]> ret = new ArrayList<>(1);
+            ret.add(buf);
+            return ret;
+
+        }
+
+        /**
+         * @return the number of bytes a number is encoded into
+         */
+        public int width(Number num) {
+            if (encoding == Spec.NumericField.Encoding.Varint) {
+                return 1 + varintLength(num.longValue());
             }
+            return Long.SIZE / Byte.SIZE;
+        }
 
+        /**
+         * Encode a number directly into a buffer, without allocating anything
+         * @param num the number to encode
+         * @param buf the buffer to write into, it must have width(num) bytes free at off
+         * @param off the offset to write at
+         * @return the offset right after the encoded number
+         */
+        public int write(Number num, byte[] buf, int off) {
+            switch (encoding) {
+                case Long:
+                    return writeLong(num.longValue() ^ Long.MIN_VALUE, buf, off);
+                case Varint:
+                    long val = num.longValue();
+                    int len = varintLength(val);
+                    buf[off++] = (byte) (val < 0 ? 0x7F - len : 0x80 + len);
+                    for (int i = len - 1; i >= 0; i--) {
+                        buf[off + i] = (byte) val;
+                        val >>= 8;
+                    }
+                    return off + len;
+                default:
+                    double d = num.doubleValue();
+                    // treat -0.0 as 0.0, and all NaNs the same
+                    long bits = Double.doubleToLongBits(d == 0 ? 0.0 : d);
+                    return writeLong(bits < 0 ? ~bits : bits ^ Long.MIN_VALUE, buf, off);
+            }
+        }
 
-            ArrayList ret = new ArrayList<>(1);
-            ret.add(buf.array());
-            return ret;
+        // the number of bytes needed for a value without its sign extension: 0 for 0 and -1
+        private static int varintLength(long val) {
+            long magnitude = val < 0 ? ~val : val;
+            return (Long.SIZE - Long.numberOfLeadingZeros(magnitude) + 7) / 8;
+        }
+
+        static int writeInt(int val, byte[] buf, int off) {
+            buf[off] = (byte) (val >>> 24);
+            buf[off + 1] = (byte) (val >>> 16);
+            buf[off + 2] = (byte) (val >>> 8);
+            buf[off + 3] = (byte) val;
+            return off + 4;
+        }
 
+        static int writeLong(long val, byte[] buf, int off) {
+            for (int i = 7; i >= 0; i--) {
+                buf[off + i] = (byte) val;
+                val >>>= 8;
+            }
+            return off + 8;
         }
     }
 
@@ -88,6 +150,9 @@ public class Encoders {
         public final static int PRECISION_1KM = 6;
         public final static int PRECISION_150M = 7;
 
+        // the mean earth radius in meters
+        public final static double EARTH_RADIUS = 6371008.8;
+
         private int precision;
 
         public Geohash(int precision) {
@@ -98,15 +163,46 @@ public class Encoders {
             this.precision = precision;
         }
 
+        public int getPrecision() {
+            return precision;
+        }
+
+        /**
+         * Encode a coordinate as a fixed point int of 1e-7 degrees, about 1cm
+         */
+        static int writeDegrees(double degrees, byte[] buf, int off) {
+            return Numeric.writeInt((int) Math.round(degrees * 1e7), buf, off);
+        }
+
+        /**
+         * Decode a coordinate written by writeDegrees()
+         */
+        static double readDegrees(byte[] buf, int off) {
+            return ((buf[off] & 0xff) << 24 | (buf[off + 1] & 0xff) << 16 | (buf[off + 2] & 0xff) << 8 |
+                    (buf[off + 3] & 0xff)) / 1e7;
+        }
+
+        /**
+         * The great circle distance between two points, using the haversine formula
+         *
+         * @return the distance in meters
+         */
+        public static double distance(double lat1, double lon1, double lat2, double lon2) {
+            double dLat = Math.toRadians(lat2 - lat1);
+            double dLon = Math.toRadians(lon2 - lon1);
+            double a = Math.sin(dLat / 2) * Math.sin(dLat / 2) + Math.cos(Math.toRadians(lat1)) *
+                    Math.cos(Math.toRadians(lat2)) * Math.sin(dLon / 2) * Math.sin(dLon / 2);
+            return 2 * EARTH_RADIUS * Math.asin(Math.min(1, Math.sqrt(a)));
+        }
+
         @Override
         public List<byte[]> encode(Double[] latlon) {
-            ArrayList<byte[]> ret = new ArrayList<>(1);
+            List<byte[]> ret = new ArrayList<>(1);
             try {
                 GeoHash h = GeoHash.withCharacterPrecision(latlon[0], latlon[1], precision);
                 ret.add(h.toBase32().getBytes());
-            }
-            catch (IllegalArgumentException e) {
-                e.printStackTrace();
+            } catch (IllegalArgumentException e) {
+                throw new RuntimeException("Invalid coordinates " + Arrays.toString(latlon), e);
             }
 
             return ret;
@@ -13,6 +13,7 @@ import com.redislabs.research.dep.Hashids;
 import com.redislabs.research.text.*;
 import redis.clients.jedis.Jedis;
 import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
 import redis.clients.jedis.Tuple;
 import redis.clients.jedis.ZParams;
 
@@ -57,6 +58,11 @@ public class FullTextFacetedIndex extends BaseIndex {
 
 
     private LuaScript intersectTokens;
+    // intersects a set with the tokens, weighting the tokens like intersectTokens does
+    private LuaScript filterTokens;
+
+    // removes the document from all the keys listed in its reverse record, and the record itself
+    private LuaScript purgePostings;
 
     public FullTextFacetedIndex(String redisURI, String name, Spec spec, Tokenizer tokenizer) throws IOException {
         super(name, spec, redisURI);
@@ -90,28 +96,67 @@ public class FullTextFacetedIndex extends BaseIndex {
                 "local rc = redis.call('ZINTERSTORE', KEYS[1], numKeys, unpack(tbl))\n" +
                 "redis.expire(KEYS[1], 60)\n" +
                 "return redis.status_reply(rc)\n", redisURI);
+
+        // KEYS[1] is the destination, KEYS[2] the set to filter, ARGV[1] its weight and the rest are token keys
+        filterTokens = LuaScript.fromSource("local tbl = {KEYS[1], #ARGV, KEYS[2]}\n" +
+                "for i = 2, #ARGV do\n" +
+                "    table.insert(tbl, ARGV[i])\n" +
+                "end\n" +
+                "table.insert(tbl, 'WEIGHTS')\n" +
+                "table.insert(tbl, ARGV[1])\n" +
+                "for i = 2, #ARGV do\n" +
+                "    table.insert(tbl, math.log(1000000/(1+redis.call('ZCARD', ARGV[i]))))\n" +
+                "end\n" +
+                "table.insert(tbl, 'AGGREGATE')\n" +
+                "table.insert(tbl, 'SUM')\n" +
+                "return redis.call('ZINTERSTORE', unpack(tbl))\n", redisURI);
+
+        // KEYS[1] is the document's reverse record, ARGV[1] the document id
+        purgePostings = LuaScript.fromSource("local rec = redis.call('GET', KEYS[1])\n" +
+                "if not rec then\n" +
+                "    return 0\n" +
+                "end\n" +
+                DECODE_RECORD_LUA +
+                "for _, key in ipairs(items) do\n" +
+                "    redis.call('ZREM', key, ARGV[1])\n" +
+                "end\n" +
+                "redis.call('DEL', KEYS[1])\n" +
+                "return #items\n", redisURI);
     }
 
+    /**
+     * Index documents in a single pipeline. Postings written for a previous version of a document are removed,
+     * and the keys of the new postings are saved in the document's reverse record so it can be deleted later
+     * @param docs a list of documents to be indexed
+     */
     @Override
     public Boolean index(Document... docs) throws IOException {
 
+        long[] internal = internalIds(docs);
         Jedis conn = pool.getResource();
         Pipeline pipe = conn.pipelined();
 
-        for (Document doc : docs) {
+        for (int d = 0; d < docs.length; d++) {
+            Document doc = docs[d];
+            // the member stored in all the postings
+            String member = internal == null ? doc.getId() : Long.toString(internal[d]);
+            String recKey = recordKey(doc.getId());
+            purgePostings.execute(pipe, 1, recKey, member);
+
+            List<String> keys = new ArrayList<>();
             try {
                 for (Spec.Field field : spec.fields) {
 
                     switch (field.type) {
                         case FullText:
 
-                            indexFulltextFields((Spec.FulltextField) field, doc, pipe);
+                            indexFulltextFields((Spec.FulltextField) field, doc, member, pipe, keys);
                             break;
                         case Numeric:
 
                             Number num = (Number) doc.property(field.name);
                             if (num != null) {
-                                indexNumeric(field.name, doc.getId(), num, pipe);
+                                indexNumeric(field.name, member, num, pipe, keys);
                             }
                             break;
                         case Geo:
@@ -120,7 +165,7 @@ public class FullTextFacetedIndex extends BaseIndex {
                             if (latlon.length != 2) {
                                 throw new RuntimeException("Invalid length for lat,lon pair");
                             }
-                            indexGeoPoint(doc.getId(), latlon[0], latlon[1], gf.precision, pipe);
+                            indexGeoPoint(member, latlon[0], latlon[1], gf.precision, pipe, keys);
                             break;
                         default:
                             throw new RuntimeException("Unsuppported index spec type for " + field.name + ": " + field.type.toString());
@@ -131,7 +176,12 @@ public class FullTextFacetedIndex extends BaseIndex {
                 ex.printStackTrace(System.err);
             }
 
-
+            // save whatever we've written, even if the document failed half way
+            List<byte[]> rec = new ArrayList<>(keys.size());
+            for (String key : keys) {
+                rec.add(key.getBytes());
+            }
+            pipe.set(recKey.getBytes(), encodeRecord(rec));
         }
         try {
             pipe.sync();
@@ -150,13 +200,81 @@ public class FullTextFacetedIndex extends BaseIndex {
     }
 
 
+    /**
+     * Delete documents by id, using their reverse records. All ids are deleted in a single pipeline
+     * @param ids the list of ids to delete
+     */
     @Override
     public Boolean delete(String... ids) {
-        return null;
+        Long[] internal = idDictionary == null ? null : idDictionary.lookup(ids);
+        try (Jedis conn = pool.getResource()) {
+            Pipeline pipe = conn.pipelined();
+            for (int i = 0; i < ids.length; i++) {
+                if (internal == null) {
+                    purgePostings.execute(pipe, 1, recordKey(ids[i]), ids[i]);
+                } else if (internal[i] != null) {
+                    purgePostings.execute(pipe, 1, recordKey(ids[i]), internal[i].toString());
+                }
+            }
+            pipe.sync();
+        }
+        return true;
     }
 
+    /**
+     * Drop the index completely, deleting all its token, field, geo and record keys
+     */
     @Override
     public Boolean drop() {
+        long deleted = 0;
+        // tokens, field names and geohashes never contain the separator
+        for (String prefix : new String[]{tokenKey(""), fieldKey(""), geoKey("")}) {
+            deleted += deleteKeys(prefix, singlePart(prefix));
+        }
+        deleted += deleteKeys(recordKey(""), new KeyFilter() {
+            @Override
+            public List<String> filter(Jedis conn, List<String> keys) {
+                return ownRecords(conn, keys);
+            }
+        });
+        return deleted > 0;
+    }
+
+    /**
+     * Document ids may contain the separator, so records are told apart by the postings they list, which are
+     * keys of their own index. Empty records are deleted either way, as there is nothing to delete through them
+     */
+    private List<String> ownRecords(Jedis conn, List<String> keys) {
+        Pipeline pipe = conn.pipelined();
+        List<Response<byte[]>> records = new ArrayList<>(keys.size());
+        for (String key : keys) {
+            records.add(pipe.get(key.getBytes()));
+        }
+        pipe.sync();
+
+        List<String> ret = new ArrayList<>(keys.size());
+        for (int i = 0; i < keys.size(); i++) {
+            byte[] rec = records.get(i).get();
+            if (rec == null) {
+                continue;
+            }
+            List<byte[]> items = decodeRecord(rec);
+            if (items.isEmpty() || ownKey(new String(items.get(0)))) {
+                ret.add(keys.get(i));
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * @return true if a key is a token, field or geo key of this index
+     */
+    private boolean ownKey(String key) {
+        for (String prefix : new String[]{tokenKey(""), fieldKey(""), geoKey("")}) {
+            if (key.startsWith(prefix) && key.indexOf(':', prefix.length()) < 0) {
+                return true;
+            }
+        }
         return false;
     }
 
@@ -173,14 +291,16 @@ public class FullTextFacetedIndex extends BaseIndex {
     }
 
 
-    void indexNumeric(String fieldName, String docId, Number value, Pipeline pipe) {
+    void indexNumeric(String fieldName, String docId, Number value, Pipeline pipe, List<String> keys) {
         Jedis conn = null;
         if (pipe == null) {
             conn = pool.getResource();
             pipe = conn.pipelined();
         }
 
-        pipe.zadd(fieldKey(fieldName), value.doubleValue(), docId);
+        String key = fieldKey(fieldName);
+        pipe.zadd(key, value.doubleValue(), docId);
+        keys.add(key);
 
         // only if the connection was not provided to us - commit everything
         if (conn != null) {
@@ -189,7 +309,7 @@ public class FullTextFacetedIndex extends BaseIndex {
         }
     }
 
-    void indexFulltextFields(Spec.FulltextField spec, Document doc, Pipeline pipe) {
+    void indexFulltextFields(Spec.FulltextField spec, Document doc, String member, Pipeline pipe, List<String> keys) {
 
         Jedis conn = null;
         if (pipe == null) {
@@ -214,7 +334,9 @@ public class FullTextFacetedIndex extends BaseIndex {
         mergedTokens.normalize(mergedTokens.getMaxFreq());
 
         for (Token tok : mergedTokens.values()) {
-            pipe.zadd(tokenKey(tok.text), doc.getScore() * (0.5 + 0.5*tok.frequency), doc.getId());
+            String key = tokenKey(tok.text);
+            pipe.zadd(key, doc.getScore() * (0.5 + 0.5*tok.frequency), member);
+            keys.add(key);
         }
 
         // only if the connection was not provided to us - commit everything
@@ -224,18 +346,26 @@ public class FullTextFacetedIndex extends BaseIndex {
         }
     }
 
-    void indexGeoPoint(String docId, Double lat, Double lon, int precision, Pipeline pipe) {
+    void indexGeoPoint(String docId, Double lat, Double lon, int precision, Pipeline pipe, List<String> keys) {
         GeoHash coarse = GeoHash.withCharacterPrecision(lat, lon, precision);
         GeoHash fine = GeoHash.withBitPrecision(lat, lon, 53);
 
-        pipe.zadd(geoKey(coarse.toBase32()), fine.longValue(), docId);
+        String key = geoKey(coarse.toBase32());
+        pipe.zadd(key, fine.longValue(), docId);
+        keys.add(key);
 
     }
 
+    /**
+     * The plan of a query. Each filter becomes a step, and queries with several filters intersect them. Before
+     * executing, the plan fetches cheap cardinality estimates for all the steps in a single pipeline, and orders
+     * the intersection so the most selective step is materialized first and every other step only filters it
+     */
     private class QueryExecutionPlan {
 
         Step root;
         Query query;
+        List<Step> steps = new ArrayList<>();
 
         public QueryExecutionPlan(Query query) {
 
@@ -297,31 +427,86 @@ public class FullTextFacetedIndex extends BaseIndex {
                         throw new RuntimeException("Unsupported field type: " + field.type.toString());
                 }
 
-                if (root == null) {
-                    root = s;
+                steps.add(s);
+            }
+            root = steps.size() == 1 ? steps.get(0) : new IntersectStep(steps.toArray(new Step[steps.size()]));
+        }
 
-                } else if(s != null) {
-                    root.addChild(s);
-                }
+        /**
+         * Estimate the cardinality of all the steps, and order the intersection by it
+         *
+         * @return false if some step matches nothing, so the query has no results
+         */
+        private boolean plan(Jedis conn) {
+            if (steps.size() < 2) {
+                return true;
             }
-            //System.out.println(root.toString());
 
+            Pipeline pipe = conn.pipelined();
+            for (Step s : steps) {
+                s.queueEstimate(pipe);
+            }
+            pipe.sync();
+
+            for (Step s : steps) {
+                if (s.estimate() == 0) {
+                    return false;
+                }
+            }
+            Collections.sort(root.children, new Comparator<Step>() {
+                @Override
+                public int compare(Step a, Step b) {
+                    return Long.compare(a.estimate(), b.estimate());
+                }
+            });
+            return true;
         }
 
         public List<Entry> execute() {
             Jedis conn = pool.getResource();
+            if (!plan(conn)) {
+                conn.close();
+                return new ArrayList<>();
+            }
             Pipeline pipe = conn.pipelined();
 
             String tmpKey = root.execute(pipe);
 
+            // by default the best scores come first
+            Query.Sorting sort = query.sort;
+            boolean ascending = false;
+            if (sort.by != null && !sort.by.isEmpty()) {
+                ascending = Boolean.TRUE.equals(sort.ascending);
+                if (!Query.Sorting.SCORE.equals(sort.by)) {
+                    tmpKey = sortByField(pipe, tmpKey, sort.by);
+                }
+            }
 
-            pipe.zrevrangeWithScores(tmpKey, query.sort.offset, query.sort.offset + query.sort.limit);
+            // without a limit, everything from the offset on
+            int offset = sort.offset != null ? sort.offset : 0;
+            int end = sort.limit != null ? offset + sort.limit - 1 : -1;
+            if (ascending) {
+                pipe.zrangeWithScores(tmpKey, offset, end);
+            } else {
+                pipe.zrevrangeWithScores(tmpKey, offset, end);
+            }
 
             List<Object> res = pipe.syncAndReturnAll();
             conn.close();
 
 
             Set<Tuple> ids = (Set<Tuple>) res.get(res.size() - 1);
+            if (idDictionary != null) {
+                long[] internal = new long[ids.size()];
+                double[] scores = new double[ids.size()];
+                int i = 0;
+                for (Tuple t : ids) {
+                    internal[i] = Long.parseLong(t.getElement());
+                    scores[i++] = t.getScore();
+                }
+                return externalEntries(internal, scores);
+            }
+
             List<Entry> entries = new ArrayList<>(ids.size());
             for (Tuple t : ids) {
                 entries.add(new Entry(t.getElement(), t.getScore()));
@@ -330,6 +515,29 @@ public class FullTextFacetedIndex extends BaseIndex {
         }
 
 
+        /**
+         * Replace the scores of the results with the values of a numeric field, by intersecting them with the
+         * field's sorted set with a zero weight for the results. Results without a value are dropped
+         *
+         * @return the key of the sorted results
+         */
+        private String sortByField(Pipeline pipe, String key, String field) {
+            boolean numeric = false;
+            for (Spec.Field f : spec.fields) {
+                if (f.matches(field) && f.type == Spec.IndexingType.Numeric) {
+                    numeric = true;
+                    break;
+                }
+            }
+            if (!numeric) {
+                throw new RuntimeException("Cannot sort by " + field + ", only numeric fields are sortable");
+            }
+
+            String tk = root.makeTmpKey(key, fieldKey(field));
+            pipe.zinterstore(tk, new ZParams().weightsByDouble(0, 1), key, fieldKey(field));
+            pipe.expire(tk, Step.DEFAULT_EXPIRATION);
+            return tk;
+        }
     }
 
 
@@ -376,18 +584,50 @@ public class FullTextFacetedIndex extends BaseIndex {
 
         abstract String execute(Pipeline pipe);
 
+        /**
+         * Intersect an already computed set with the documents matching this step. The default materializes
+         * the step, steps matching large sets override it to only do work proportional to the given set
+         *
+         * @param key       the set to filter
+         * @param keyWeight the weight of the set's scores in the result
+         * @return the key of the filtered set
+         */
+        String filter(Pipeline pipe, String key, double keyWeight) {
+            String own = execute(pipe);
+            String tk = makeTmpKey(key, own);
+            pipe.zinterstore(tk, new ZParams().weightsByDouble(keyWeight, weight()), key, own);
+            pipe.expire(tk, DEFAULT_EXPIRATION);
+            return tk;
+        }
+
+        /**
+         * Queue the cheap queries used to estimate how many documents this step matches
+         */
+        void queueEstimate(Pipeline pipe) {
+        }
+
+        /**
+         * @return an upper bound of the number of documents this step matches, from the estimate queries
+         */
+        long estimate() {
+            return Long.MAX_VALUE;
+        }
+
+        /**
+         * Create a temporary key, named after the keys it is computed from, or unique if none are given. Temporary
+         * keys are prefixed so they never collide with the keys of documents or of other indexes
+         */
         protected String makeTmpKey(String... subKeys) {
 
-            Hashids hids = new Hashids();
             if (subKeys.length == 0) {
-                return hids.encrypt(UUID.randomUUID().getLeastSignificantBits());
+                return "tmp:" + name + ":" + UUID.randomUUID();
             }
 
             CRC32 crc = new CRC32();
             for (String key : subKeys) {
                 crc.update(key.getBytes());
             }
-            return hids.encrypt(crc.getValue());
+            return "tmp:" + name + ":" + new Hashids().encrypt(crc.getValue());
         }
 
         double weight() {
@@ -417,15 +657,21 @@ public class FullTextFacetedIndex extends BaseIndex {
         }
 
 
+        /**
+         * Materialize the first child and filter it by all the others in turn, so when the children are ordered
+         * by their cardinality no intermediate set is larger than the smallest one
+         */
         @Override
         String execute(Pipeline pipe) {
 
-            String[] tmpKeys = executeChildren(pipe);
-
-            String tk = makeTmpKey(tmpKeys);
-            pipe.zinterstore(tk, new ZParams().weightsByDouble(childrenWeights()), tmpKeys);
-            pipe.expire(tk, DEFAULT_EXPIRATION);
-            return tk;
+            String key = children.get(0).execute(pipe);
+            double keyWeight = children.get(0).weight();
+            for (int i = 1; i < children.size(); i++) {
+                key = children.get(i).filter(pipe, key, keyWeight);
+                // the scores of the filtered set are already weighted
+                keyWeight = 1;
+            }
+            return key;
         }
     }
 
@@ -433,6 +679,7 @@ public class FullTextFacetedIndex extends BaseIndex {
 
         List<Token> tokens;
         String raw;
+        List<Response<Long>> counts = new ArrayList<>();
 
         /**
          * Create an intersection step between multiple token indexes
@@ -463,6 +710,47 @@ public class FullTextFacetedIndex extends BaseIndex {
             pipe.expire(keys[0], DEFAULT_EXPIRATION);
             return keys[0];
         }
+
+        /**
+         * Intersect the set with the tokens directly, weighting them as execute() does, instead of materializing
+         * the intersection of common tokens first
+         */
+        @Override
+        String filter(Pipeline pipe, String key, double keyWeight) {
+            String tk = makeTmpKey();
+            if (tokens.size() == 1) {
+                pipe.zinterstore(tk, new ZParams().weightsByDouble(keyWeight, weight()), key,
+                        tokenKey(tokens.get(0).text));
+            } else {
+                String[] args = new String[tokens.size() + 3];
+                args[0] = tk;
+                args[1] = key;
+                args[2] = Double.toString(keyWeight);
+                for (int i = 0; i < tokens.size(); i++) {
+                    args[i + 3] = tokenKey(tokens.get(i).text);
+                }
+                filterTokens.execute(pipe, 2, args);
+            }
+            pipe.expire(tk, DEFAULT_EXPIRATION);
+            return tk;
+        }
+
+        @Override
+        void queueEstimate(Pipeline pipe) {
+            for (Token tok : tokens) {
+                counts.add(pipe.zcard(tokenKey(tok.text)));
+            }
+        }
+
+        // the intersection is at most as large as the rarest token
+        @Override
+        long estimate() {
+            long ret = Long.MAX_VALUE;
+            for (Response<Long> count : counts) {
+                ret = Math.min(ret, count.get());
+            }
+            return ret;
+        }
     }
 
     private class RangeStep extends Step {
@@ -470,6 +758,7 @@ public class FullTextFacetedIndex extends BaseIndex {
         private String fieldName;
         private Double min;
         private Double max;
+        private Response<Long> count;
 
         public RangeStep(String fieldName, Double min, Double max) {
 
@@ -492,6 +781,39 @@ public class FullTextFacetedIndex extends BaseIndex {
             return tk;
         }
 
+        /**
+         * Look up the values of the set's members instead of copying the whole range: intersect the set with
+         * the field's sorted set to get their values, and remove the ones out of the range
+         */
+        @Override
+        String filter(Pipeline pipe, String key, double keyWeight) {
+            String values = makeTmpKey();
+            pipe.zinterstore(values, new ZParams().weightsByDouble(0, 1), key, fieldKey(fieldName));
+            if (min != null) {
+                pipe.zremrangeByScore(values, "-inf", "(" + min);
+            }
+            if (max != null) {
+                pipe.zremrangeByScore(values, "(" + max, "+inf");
+            }
+
+            String tk = makeTmpKey();
+            pipe.zinterstore(tk, new ZParams().weightsByDouble(keyWeight, weight()), key, values);
+            pipe.del(values);
+            pipe.expire(tk, DEFAULT_EXPIRATION);
+            return tk;
+        }
+
+        @Override
+        void queueEstimate(Pipeline pipe) {
+            count = pipe.zcount(fieldKey(fieldName), min != null ? min.toString() : "-inf",
+                    max != null ? max.toString() : "+inf");
+        }
+
+        @Override
+        long estimate() {
+            return count.get();
+        }
+
         @Override
         double weight() {
             return 0;
@@ -524,6 +846,7 @@ public class FullTextFacetedIndex extends BaseIndex {
         private final double lon;
         private final double radius;
         private final int precision;
+        private List<Response<Long>> counts = new ArrayList<>();
 
 
         @Override
@@ -555,9 +878,46 @@ public class FullTextFacetedIndex extends BaseIndex {
 
             pipe.zunionstore(tmpKey, new ZParams().aggregate(ZParams.Aggregate.MAX)
                     .weightsByDouble(scoresArr), keysArr);
+            pipe.expire(tmpKey, DEFAULT_EXPIRATION);
             return tmpKey;
         }
 
+        /**
+         * Intersect the set with each of the cells and union the small results, instead of unioning the cells
+         */
+        @Override
+        String filter(Pipeline pipe, String key, double keyWeight) {
+            Set<String> hashKeys = getSearchHashes();
+            String[] parts = new String[hashKeys.size()];
+            int i = 0;
+            for (String hashKey : hashKeys) {
+                parts[i] = makeTmpKey();
+                pipe.zinterstore(parts[i++], new ZParams().weightsByDouble(keyWeight, weight()), key, hashKey);
+            }
+
+            String tk = makeTmpKey();
+            pipe.zunionstore(tk, new ZParams().aggregate(ZParams.Aggregate.MAX), parts);
+            pipe.del(parts);
+            pipe.expire(tk, DEFAULT_EXPIRATION);
+            return tk;
+        }
+
+        @Override
+        void queueEstimate(Pipeline pipe) {
+            for (String hashKey : getSearchHashes()) {
+                counts.add(pipe.zcard(hashKey));
+            }
+        }
+
+        @Override
+        long estimate() {
+            long ret = 0;
+            for (Response<Long> count : counts) {
+                ret += count.get();
+            }
+            return ret;
+        }
+
         @Override
         double weight() {
             return 0d;
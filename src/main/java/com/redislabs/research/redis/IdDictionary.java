@@ -0,0 +1,267 @@
+package com.redislabs.research.redis;
+
+import com.redislabs.luascript.LuaScript;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * IdDictionary maps external document ids (e.g. UUIDs) to dense integer ids, so indexes can store a compact
+ * integer in every entry and posting instead of the full id. Ids are allocated atomically in redis, and both
+ * directions are cached client side. A dictionary can be shared by several indexes
+ */
+public class IdDictionary {
+
+    /**
+     * The width of the internal ids when they are stored in binary form
+     */
+    public enum Width {
+        Int32(4),
+        Int64(8);
+
+        public final int bytes;
+
+        Width(int bytes) {
+            this.bytes = bytes;
+        }
+    }
+
+    // when a cache grows beyond this, it is cleared
+    public static final int DEFAULT_MAX_CACHED = 1000000;
+
+    private final String name;
+    private final Width width;
+    private final JedisPool pool;
+    private final int maxCached;
+
+    private final ConcurrentHashMap<String, Long> forward = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Long, String> reverse = new ConcurrentHashMap<>();
+
+    // KEYS[1] is the forward hash, KEYS[2] the reverse hash and KEYS[3] the sequence. ARGV are the external ids
+    private LuaScript allocate;
+
+    /**
+     * Constructor
+     *
+     * @param name     the dictionary name, used in its keys
+     * @param width    the width of the internal ids
+     * @param redisURI the redis server holding the dictionary
+     */
+    public IdDictionary(String name, Width width, String redisURI) {
+        this(name, width, redisURI, DEFAULT_MAX_CACHED);
+    }
+
+    public IdDictionary(String name, Width width, String redisURI, int maxCached) {
+        this.name = name;
+        this.width = width;
+        this.maxCached = maxCached;
+        pool = new JedisPool(URI.create(redisURI));
+
+        try {
+            allocate = LuaScript.fromSource("local ret = {}\n" +
+                    "for i, ext in ipairs(ARGV) do\n" +
+                    "    local id = redis.call('HGET', KEYS[1], ext)\n" +
+                    "    if not id then\n" +
+                    "        id = redis.call('INCR', KEYS[3])\n" +
+                    "        redis.call('HSET', KEYS[1], ext, id)\n" +
+                    "        redis.call('HSET', KEYS[2], id, ext)\n" +
+                    "    end\n" +
+                    "    ret[i] = tonumber(id)\n" +
+                    "end\n" +
+                    "return ret\n", redisURI);
+        } catch (IOException e) {
+            throw new RuntimeException("Could not load dictionary scripts", e);
+        }
+    }
+
+    public Width getWidth() {
+        return width;
+    }
+
+    private String forwardKey() {
+        return "i:" + name + ":fwd";
+    }
+
+    private String reverseKey() {
+        return "i:" + name + ":rev";
+    }
+
+    private String sequenceKey() {
+        return "i:" + name + ":seq";
+    }
+
+    /**
+     * Get the internal ids of external ids, allocating new ones for ids we haven't seen before.
+     * All the ids missing from the cache are allocated in a single call
+     *
+     * @param ids external ids
+     * @return the internal ids, in the same order
+     */
+    public long[] allocate(String... ids) {
+        long[] ret = new long[ids.length];
+        List<String> missing = new ArrayList<>();
+        for (int i = 0; i < ids.length; i++) {
+            Long id = forward.get(ids[i]);
+            if (id == null) {
+                missing.add(ids[i]);
+            } else {
+                ret[i] = id;
+            }
+        }
+        if (missing.isEmpty()) {
+            return ret;
+        }
+
+        String[] args = new String[3 + missing.size()];
+        args[0] = forwardKey();
+        args[1] = reverseKey();
+        args[2] = sequenceKey();
+        for (int i = 0; i < missing.size(); i++) {
+            args[3 + i] = missing.get(i);
+        }
+        List<?> allocated;
+        try (Jedis conn = pool.getResource()) {
+            allocated = (List<?>) allocate.execute(conn, 3, args);
+        }
+        Map<String, Long> fresh = new HashMap<>(missing.size());
+        for (int i = 0; i < missing.size(); i++) {
+            long id = (Long) allocated.get(i);
+            if (width == Width.Int32 && id > 0xffffffffL) {
+                throw new RuntimeException("Dictionary " + name + " ran out of 32 bit ids");
+            }
+            fresh.put(missing.get(i), id);
+            cache(missing.get(i), id);
+        }
+
+        // allocated ids start from 1, so 0 marks the ones we had to allocate
+        for (int i = 0; i < ids.length; i++) {
+            if (ret[i] == 0) {
+                ret[i] = fresh.get(ids[i]);
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Get the internal ids of external ids without allocating new ones
+     *
+     * @param ids external ids
+     * @return the internal ids, in the same order, or null for ids that were never allocated
+     */
+    public Long[] lookup(String... ids) {
+        Long[] ret = new Long[ids.length];
+        List<Integer> missing = new ArrayList<>();
+        for (int i = 0; i < ids.length; i++) {
+            ret[i] = forward.get(ids[i]);
+            if (ret[i] == null) {
+                missing.add(i);
+            }
+        }
+        if (missing.isEmpty()) {
+            return ret;
+        }
+
+        String[] fields = new String[missing.size()];
+        for (int i = 0; i < fields.length; i++) {
+            fields[i] = ids[missing.get(i)];
+        }
+        List<String> found;
+        try (Jedis conn = pool.getResource()) {
+            found = conn.hmget(forwardKey(), fields);
+        }
+        for (int i = 0; i < fields.length; i++) {
+            if (found.get(i) != null) {
+                ret[missing.get(i)] = Long.parseLong(found.get(i));
+                cache(fields[i], ret[missing.get(i)]);
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Translate internal ids back to external ids. All the ids missing from the cache are fetched in one call
+     *
+     * @param ids internal ids
+     * @return the external ids, in the same order, or null for unknown ids
+     */
+    public String[] resolve(long... ids) {
+        String[] ret = new String[ids.length];
+        List<Integer> missing = new ArrayList<>();
+        for (int i = 0; i < ids.length; i++) {
+            ret[i] = reverse.get(ids[i]);
+            if (ret[i] == null) {
+                missing.add(i);
+            }
+        }
+        if (missing.isEmpty()) {
+            return ret;
+        }
+
+        String[] fields = new String[missing.size()];
+        for (int i = 0; i < fields.length; i++) {
+            fields[i] = Long.toString(ids[missing.get(i)]);
+        }
+        List<String> found;
+        try (Jedis conn = pool.getResource()) {
+            found = conn.hmget(reverseKey(), fields);
+        }
+        for (int i = 0; i < fields.length; i++) {
+            ret[missing.get(i)] = found.get(i);
+            if (found.get(i) != null) {
+                cache(found.get(i), ids[missing.get(i)]);
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Write an internal id into a buffer as a fixed width big endian number, preserving the ids' order
+     *
+     * @return the offset right after the id
+     */
+    public int write(long id, byte[] buf, int off) {
+        for (int i = width.bytes - 1; i >= 0; i--) {
+            buf[off + i] = (byte) id;
+            id >>>= 8;
+        }
+        return off + width.bytes;
+    }
+
+    /**
+     * Read an internal id written by write()
+     */
+    public long read(byte[] buf, int off) {
+        long ret = 0;
+        for (int i = 0; i < width.bytes; i++) {
+            ret = ret << 8 | (buf[off + i] & 0xff);
+        }
+        return ret;
+    }
+
+    private void cache(String ext, long id) {
+        if (forward.size() >= maxCached) {
+            forward.clear();
+            reverse.clear();
+        }
+        forward.put(ext, id);
+        reverse.put(id, ext);
+    }
+
+    /**
+     * Delete the dictionary completely. Indexes using it must be dropped as well
+     */
+    public void drop() {
+        forward.clear();
+        reverse.clear();
+        try (Jedis conn = pool.getResource()) {
+            conn.del(forwardKey(), reverseKey(), sequenceKey());
+        }
+    }
+}
@@ -0,0 +1,277 @@
+package com.redislabs.research.redis;
+
+import com.redislabs.research.Index;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * NearCache is a small in-process cache of query results, meant to sit in front of an index serving skewed
+ * traffic such as autocomplete, where a few thousand prefixes make up most of the queries.
+ * <p>
+ * The cache is bounded by the number of results it holds. When it is full, a new result is only admitted if it
+ * has been requested more often than the least recently used result it would replace, so one-off queries do not
+ * flush the popular ones. Request frequencies are tracked with a small count-min sketch that is periodically
+ * halved, so popularity decays over time.
+ * <p>
+ * Cached results expire after a TTL, and are invalidated all at once when the index generation changes.
+ */
+public class NearCache {
+
+    public static final int DEFAULT_MAX_ENTRIES = 10000;
+    public static final long DEFAULT_TTL_MILLIS = 60000;
+    // how often the owning index should check the generation counter in redis
+    public static final long DEFAULT_GENERATION_CHECK_MILLIS = 1000;
+
+    /**
+     * A cache key wrapping the raw encoded query
+     */
+    static final class Key {
+        private final byte[] raw;
+        private final int hash;
+
+        Key(byte[] raw) {
+            this.raw = raw;
+            this.hash = Arrays.hashCode(raw);
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof Key && ((Key) other).hash == hash && Arrays.equals(((Key) other).raw, raw);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    private static final class Cached {
+        private final List<Index.Entry> entries;
+        private final long generation;
+        private final long expires;
+
+        Cached(List<Index.Entry> entries, long generation, long expires) {
+            this.entries = entries;
+            this.generation = generation;
+            this.expires = expires;
+        }
+    }
+
+    /**
+     * A count-min sketch of 4 bit counters, used to estimate how often keys were requested recently
+     */
+    static final class FrequencySketch {
+        private static final int[] SEEDS = {0x97cb3127, 0xb5ad4ece, 0x9e3779b9, 0x5bd1e995};
+        private static final int MAX_COUNT = 15;
+
+        private final byte[][] table;
+        private final int mask;
+        private final int resetAfter;
+        private int additions;
+
+        FrequencySketch(int maxEntries) {
+            int width = Integer.highestOneBit(Math.max(maxEntries, 8) * 2 - 1) * 2;
+            table = new byte[SEEDS.length][width];
+            mask = width - 1;
+            resetAfter = maxEntries * 10;
+        }
+
+        private int index(int hash, int row) {
+            int h = hash * SEEDS[row];
+            return (h ^ (h >>> 16)) & mask;
+        }
+
+        void increment(int hash) {
+            for (int row = 0; row < table.length; row++) {
+                int i = index(hash, row);
+                if (table[row][i] < MAX_COUNT) {
+                    table[row][i]++;
+                }
+            }
+            if (++additions >= resetAfter) {
+                // age all the counters so old popularity fades out
+                for (byte[] counters : table) {
+                    for (int i = 0; i < counters.length; i++) {
+                        counters[i] >>= 1;
+                    }
+                }
+                additions = 0;
+            }
+        }
+
+        int frequency(int hash) {
+            int ret = MAX_COUNT;
+            for (int row = 0; row < table.length; row++) {
+                ret = Math.min(ret, table[row][index(hash, row)]);
+            }
+            return ret;
+        }
+    }
+
+    private final int maxEntries;
+    private final long ttlMillis;
+    private long generationCheckMillis = DEFAULT_GENERATION_CHECK_MILLIS;
+
+    // access ordered, so the first entry is the least recently used one
+    private final LinkedHashMap<Key, Cached> results;
+    private final FrequencySketch sketch;
+
+    private volatile long generation;
+    // the last generation counter seen in redis, and when we looked at it
+    private volatile String remoteGeneration;
+    private volatile long lastGenerationCheck;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong rejections = new AtomicLong();
+
+    public NearCache() {
+        this(DEFAULT_MAX_ENTRIES, DEFAULT_TTL_MILLIS);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param maxEntries the maximal number of cached results
+     * @param ttlMillis  how long a result is served from the cache
+     */
+    public NearCache(int maxEntries, long ttlMillis) {
+        if (maxEntries <= 0) {
+            throw new RuntimeException("Cache size must be positive");
+        }
+        this.maxEntries = maxEntries;
+        this.ttlMillis = ttlMillis;
+        results = new LinkedHashMap<>(16, 0.75f, true);
+        sketch = new FrequencySketch(maxEntries);
+    }
+
+    /**
+     * Set how often the owning index checks the generation counter in redis, i.e. for how long writes made by
+     * other processes may go unnoticed
+     *
+     * @return the cache itself
+     */
+    public NearCache setGenerationCheckMillis(long generationCheckMillis) {
+        this.generationCheckMillis = generationCheckMillis;
+        return this;
+    }
+
+    /**
+     * Get a cached result
+     *
+     * @return a copy of the cached result, or null if it is not cached or no longer valid
+     */
+    public synchronized List<Index.Entry> get(Key key) {
+        sketch.increment(key.hashCode());
+        Cached cached = results.get(key);
+        if (cached != null && !valid(cached, System.currentTimeMillis())) {
+            results.remove(key);
+            cached = null;
+        }
+        if (cached == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return new ArrayList<>(cached.entries);
+    }
+
+    /**
+     * Offer a result to the cache. If the cache is full, the result is only admitted if it is requested more
+     * often than the result it would evict
+     *
+     * @param key        the key of the result
+     * @param entries    the result
+     * @param generation the generation the result was computed at, from getGeneration()
+     */
+    public synchronized void put(Key key, List<Index.Entry> entries, long generation) {
+        if (generation != this.generation) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        if (!results.containsKey(key) && results.size() >= maxEntries) {
+            Iterator<Map.Entry<Key, Cached>> it = results.entrySet().iterator();
+            Map.Entry<Key, Cached> victim = it.next();
+            if (valid(victim.getValue(), now)) {
+                if (sketch.frequency(key.hashCode()) <= sketch.frequency(victim.getKey().hashCode())) {
+                    rejections.incrementAndGet();
+                    return;
+                }
+                evictions.incrementAndGet();
+            }
+            it.remove();
+        }
+        results.put(key, new Cached(new ArrayList<>(entries), generation, now + ttlMillis));
+    }
+
+    private boolean valid(Cached cached, long now) {
+        return cached.generation == generation && cached.expires > now;
+    }
+
+    /**
+     * @return the current generation. Results computed before the next invalidation should be put with it
+     */
+    public long getGeneration() {
+        return generation;
+    }
+
+    /**
+     * Invalidate all the cached results
+     */
+    public synchronized void invalidate() {
+        generation++;
+    }
+
+    /**
+     * @return true if the owning index should check the generation counter in redis
+     */
+    boolean generationCheckDue() {
+        return System.currentTimeMillis() - lastGenerationCheck >= generationCheckMillis;
+    }
+
+    /**
+     * Report the generation counter currently in redis, invalidating the cache if it has changed since the
+     * last check
+     */
+    void observeGeneration(String remote) {
+        lastGenerationCheck = System.currentTimeMillis();
+        String last = remoteGeneration;
+        remoteGeneration = remote;
+        if (last == null ? remote != null : !last.equals(remote)) {
+            invalidate();
+        }
+    }
+
+    public synchronized int size() {
+        return results.size();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * @return the number of valid results evicted to make room for more popular ones
+     */
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    /**
+     * @return the number of results not admitted since they were less popular than the results in the cache
+     */
+    public long getRejections() {
+        return rejections.get();
+    }
+}
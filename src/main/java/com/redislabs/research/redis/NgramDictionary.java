@@ -0,0 +1,275 @@
+package com.redislabs.research.redis;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.Pipeline;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * NgramDictionary is a compact per-index set of the character bigrams appearing in indexed values, kept in a
+ * redis set. It is used to expand a possibly mistyped prefix into candidate prefixes within an edit distance,
+ * pruning every candidate that contains a bigram no indexed value has. The first character of a value is
+ * recorded as a bigram with a start marker, so candidates must also start like some value does.
+ */
+class NgramDictionary {
+
+    // marks the start of a value in start bigrams
+    static final char START = '\u0001';
+
+    // how often the local copy of the dictionary is reloaded from redis
+    static final long REFRESH_MILLIS = 10000;
+
+    // how many candidates of each edit distance are expanded further, fewest missing bigrams first
+    static final int LEVEL_WIDTH = 256;
+
+    // reloads dictionaries in the background, so queries never wait for it
+    private static final ExecutorService refresher = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "research-ngram-refresh");
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    private final String key;
+    private volatile Set<String> bigrams = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private volatile long loaded = 0;
+    // the size of the redis set when we last loaded it
+    private volatile long remoteSize = 0;
+    private final AtomicBoolean refreshing = new AtomicBoolean();
+
+    NgramDictionary(String key) {
+        this.key = key;
+    }
+
+    /**
+     * @return the bigrams of a value, including its start bigram
+     */
+    static Set<String> bigrams(String value) {
+        Set<String> ret = new LinkedHashSet<>();
+        if (value.isEmpty()) {
+            return ret;
+        }
+        ret.add(START + value.substring(0, 1));
+        for (int i = 0; i + 1 < value.length(); i++) {
+            ret.add(value.substring(i, i + 2));
+        }
+        return ret;
+    }
+
+    /**
+     * Add the bigrams of indexed values to the dictionary, in the indexing pipeline. Only bigrams we have not seen
+     * yet are sent to redis
+     */
+    void add(Pipeline pipe, List<byte[]> values) {
+        Set<String> added = learn(values);
+        if (!added.isEmpty()) {
+            pipe.sadd(key, added.toArray(new String[added.size()]));
+        }
+    }
+
+    /**
+     * Add the bigrams of values to the local copy of the dictionary only
+     *
+     * @return the bigrams of the values that were not in the local copy yet
+     */
+    Set<String> learn(List<byte[]> values) {
+        Set<String> known = bigrams;
+        Set<String> ret = new LinkedHashSet<>();
+        for (byte[] value : values) {
+            for (String bigram : bigrams(new String(value))) {
+                if (known.add(bigram)) {
+                    ret.add(bigram);
+                }
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Reload the dictionary from redis if our copy is too old, to pick up values indexed by other processes.
+     * The first load is done right away, later ones in the background, while queries use the current copy
+     */
+    void refresh(final JedisPool pool) {
+        if (loaded == 0) {
+            try (Jedis conn = pool.getResource()) {
+                load(conn);
+            }
+            return;
+        }
+        if (System.currentTimeMillis() - loaded < REFRESH_MILLIS || !refreshing.compareAndSet(false, true)) {
+            return;
+        }
+        refresher.submit(new Runnable() {
+            @Override
+            public void run() {
+                try (Jedis conn = pool.getResource()) {
+                    load(conn);
+                } finally {
+                    refreshing.set(false);
+                }
+            }
+        });
+    }
+
+    /**
+     * Load the bigrams saved in redis, unless the set has not changed size since we last did. Bigrams are only
+     * ever added, so the set only shrinks when the index is dropped, and then our copy is replaced
+     */
+    private void load(Jedis conn) {
+        long size = conn.scard(key);
+        if (size != remoteSize) {
+            if (size < remoteSize) {
+                Set<String> fresh = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+                fresh.addAll(conn.smembers(key));
+                bigrams = fresh;
+            } else {
+                bigrams.addAll(conn.smembers(key));
+            }
+            remoteSize = size;
+        }
+        loaded = System.currentTimeMillis();
+    }
+
+    /**
+     * Forget the local copy of the dictionary
+     */
+    void clear() {
+        bigrams = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        loaded = 0;
+        remoteSize = 0;
+    }
+
+    /**
+     * @return the number of bigrams of a candidate prefix that are not in the dictionary
+     */
+    int missing(String prefix) {
+        int ret = 0;
+        for (String bigram : bigrams(prefix)) {
+            if (!bigrams.contains(bigram)) {
+                ret++;
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Expand a prefix into the plausible prefixes within maxEdits edits of it, closest first. Candidates that
+     * extend another candidate are dropped, since the shorter one already matches everything they do
+     *
+     * @param prefix        the typed prefix
+     * @param maxEdits      the maximal edit distance
+     * @param maxCandidates the maximal number of candidates returned
+     * @return the candidates, including the prefix itself if it is plausible
+     */
+    List<String> expand(String prefix, int maxEdits, int maxCandidates) {
+        // the alphabet is all the characters the dictionary has seen
+        Set<Character> chars = new TreeSet<>();
+        for (String bigram : bigrams) {
+            for (int i = 0; i < bigram.length(); i++) {
+                if (bigram.charAt(i) != START) {
+                    chars.add(bigram.charAt(i));
+                }
+            }
+        }
+
+        Set<String> found = new LinkedHashSet<>();
+        Set<String> seen = new HashSet<>();
+        List<String> level = Collections.singletonList(prefix);
+        seen.add(prefix);
+        if (missing(prefix) == 0) {
+            found.add(prefix);
+        }
+        for (int d = 0; d < maxEdits && found.size() < maxCandidates; d++) {
+            // a single edit changes at most 3 bigrams, so candidates missing more than that per remaining edit
+            // are not expanded further
+            int fixable = 3 * (maxEdits - d - 1);
+            // the candidates to expand by the number of bigrams they miss
+            List<List<String>> next = new ArrayList<>(fixable + 1);
+            for (int m = 0; m <= fixable; m++) {
+                next.add(new ArrayList<String>());
+            }
+            for (String base : level) {
+                for (String edit : edits(base, chars)) {
+                    if (edit.isEmpty() || !seen.add(edit)) {
+                        continue;
+                    }
+                    int missing = missing(edit);
+                    if (missing == 0 && found.size() < maxCandidates) {
+                        found.add(edit);
+                    }
+                    if (missing <= fixable) {
+                        next.get(missing).add(edit);
+                    }
+                }
+            }
+            // only the most plausible candidates are expanded further, so each level is at most as large as the
+            // edits of LEVEL_WIDTH strings
+            level = new ArrayList<>(LEVEL_WIDTH);
+            for (List<String> candidates : next) {
+                for (String candidate : candidates) {
+                    if (level.size() == LEVEL_WIDTH) {
+                        break;
+                    }
+                    level.add(candidate);
+                }
+            }
+        }
+
+        List<String> ret = new ArrayList<>(found.size());
+        for (String candidate : found) {
+            boolean covered = false;
+            for (String other : found) {
+                if (other.length() < candidate.length() && candidate.startsWith(other)) {
+                    covered = true;
+                    break;
+                }
+            }
+            if (!covered) {
+                ret.add(candidate);
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * @return all the strings one edit away from s. Appending a character is not an edit for a prefix, since the
+     * prefix already matches whatever follows it. Deleting the last character is skipped as well, since it only
+     * widens the prefix, and substituting it already covers every continuation
+     */
+    private static List<String> edits(String s, Set<Character> chars) {
+        List<String> ret = new ArrayList<>();
+        for (int i = 0; i < s.length(); i++) {
+            // deletion
+            if (i + 1 < s.length()) {
+                ret.add(s.substring(0, i) + s.substring(i + 1));
+            }
+            // transposition
+            if (i + 1 < s.length()) {
+                ret.add(s.substring(0, i) + s.charAt(i + 1) + s.charAt(i) + s.substring(i + 2));
+            }
+            for (char c : chars) {
+                // substitution
+                if (c != s.charAt(i)) {
+                    ret.add(s.substring(0, i) + c + s.substring(i + 1));
+                }
+                // insertion
+                ret.add(s.substring(0, i) + c + s.substring(i));
+            }
+        }
+        return ret;
+    }
+}
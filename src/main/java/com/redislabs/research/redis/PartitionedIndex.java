@@ -55,6 +55,21 @@ public class PartitionedIndex implements Index {
 
 
 
+    }
+
+    /**
+     * Use an id dictionary in all the partitions
+     *
+     * @param idDictionary the dictionary, shared by all the partitions
+     * @return the index itself
+     */
+    public PartitionedIndex setIdDictionary(IdDictionary idDictionary) {
+        for (Index partition : partitions) {
+            if (partition instanceof BaseIndex) {
+                ((BaseIndex) partition).setIdDictionary(idDictionary);
+            }
+        }
+        return this;
     }
 
     private CRC32 hash = new CRC32();
@@ -86,11 +101,25 @@ public class PartitionedIndex implements Index {
         return true;
     }
 
+    /**
+     * Query all the partitions concurrently and merge their results in the order the query asks for. Every
+     * partition may hold any entry of the requested page, so each one is asked for everything up to its end
+     */
     @Override
-    public List<Entry> get(final Query q) throws IOException, InterruptedException {
+    public List<Entry> get(Query q) throws IOException, InterruptedException {
 
-        // this is the queue we use to aggregate the results
-        final PriorityQueue<Entry> entries = new PriorityQueue<>(q.sort.limit*partitions.length);
+        int offset = q.sort != null && q.sort.offset != null ? q.sort.offset : 0;
+        Integer limit = q.sort != null ? q.sort.limit : null;
+
+        final Query sub = new Query(q.indexName);
+        sub.filters = q.filters;
+        sub.sort = new Query.Sorting();
+        if (q.sort != null) {
+            sub.sort.by = q.sort.by;
+            sub.sort.ascending = q.sort.ascending;
+        }
+        sub.sort.offset = 0;
+        sub.sort.limit = limit != null ? offset + limit : null;
 
         List<Callable<List<Entry>>> tasks = new ArrayList<>(partitions.length);
 
@@ -100,13 +129,14 @@ public class PartitionedIndex implements Index {
             tasks.add(new Callable<List<Entry>>() {
                 @Override
                 public List<Entry> call() throws Exception {
-                    return idx.get(q);
+                    return idx.get(sub);
                 }
             });
         }
 
         List<Future<List<Entry>>> futures = pool.invokeAll(tasks, timeoutMilli, TimeUnit.MILLISECONDS);
 
+        List<Entry> entries = new ArrayList<>();
         for (Future<List<Entry>> future : futures ) {
             if (!future.isCancelled()) {
                 try {
@@ -120,32 +150,68 @@ public class PartitionedIndex implements Index {
             }
         }
 
+        Collections.sort(entries, order(q.sort));
+        int from = Math.min(offset, entries.size());
+        int to = limit != null ? Math.min(from + limit, entries.size()) : entries.size();
+        return new ArrayList<>(entries.subList(from, to));
+    }
 
-        while (entries.size() > q.sort.limit) {
-            entries.poll();
-        }
-
-        List<Entry> ret = new ArrayList<>(entries.size());
-
-        while (entries.size() > 0) {
-            ret.add(entries.poll());
+    /**
+     * The order of the merged results. By default and when sorting by score, the partitions' scores are compared.
+     * Full text indexes sort by a field by replacing the scores with its values, and simple indexes sort
+     * lexically by their first field, returning the sort keys of the entries
+     */
+    private Comparator<Entry> order(Query.Sorting sort) {
+        boolean sorted = sort != null && sort.by != null && !sort.by.isEmpty();
+        boolean ascending = sorted && Boolean.TRUE.equals(sort.ascending);
+        Comparator<Entry> ret;
+        if (sorted && !Query.Sorting.SCORE.equals(sort.by) && partitions[0] instanceof SimpleIndex) {
+            ret = new Comparator<Entry>() {
+                @Override
+                public int compare(Entry o1, Entry o2) {
+                    byte[] k1 = o1.sortKey, k2 = o2.sortKey;
+                    for (int i = 0; i < k1.length && i < k2.length; i++) {
+                        if (k1[i] != k2[i]) {
+                            return (k1[i] & 0xff) - (k2[i] & 0xff);
+                        }
+                    }
+                    return k1.length - k2.length;
+                }
+            };
+        } else {
+            ret = new Comparator<Entry>() {
+                @Override
+                public int compare(Entry o1, Entry o2) {
+                    return o1.compareTo(o2);
+                }
+            };
         }
-        Collections.reverse(ret);
-
-        return ret;
-
-
-
+        return ascending ? ret : Collections.reverseOrder(ret);
     }
 
+    /**
+     * Delete documents by id. Each id is only sent to the partition that owns it
+     */
     @Override
     public Boolean delete(String... ids) {
 
-        for (Index idx : partitions) {
-            idx.delete(ids);
+        List<List<String>> parts = new ArrayList<>(partitions.length);
+        for (int i = 0; i < partitions.length; i++) {
+            parts.add(new ArrayList<String>());
+        }
+        for (String id : ids) {
+            parts.get(partitionFor(id)).add(id);
         }
 
-        return true;
+        boolean ret = true;
+        for (int i = 0; i < partitions.length; i++) {
+            List<String> part = parts.get(i);
+            if (!part.isEmpty()) {
+                ret &= partitions[i].delete(part.toArray(new String[part.size()]));
+            }
+        }
+
+        return ret;
     }
 
     @Override
@@ -0,0 +1,394 @@
+package com.redislabs.research.redis;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import com.google.gson.reflect.TypeToken;
+import com.redislabs.research.Document;
+import com.redislabs.research.DocumentStream;
+import com.redislabs.research.Spec;
+import redis.clients.jedis.*;
+import redis.clients.jedis.exceptions.JedisDataException;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.lang.reflect.Type;
+import java.net.URI;
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * RedisScanStream is a DocumentStream reading documents from existing redis databases, so they can be indexed.
+ *
+ * It runs a SCAN cursor on each of the source nodes in parallel, each in a thread of its own, filtering keys by a
+ * pattern. Each batch of keys returned by SCAN is fetched with a single pipeline - HGETALL for hashes, or GET for
+ * JSON strings, so keys of a batch may live in different cluster slots. Keys of the wrong type are skipped.
+ * Values are mapped to documents using the index spec: the document id is the key (optionally stripped of a
+ * prefix), and each spec field is read from the hash field (or JSON property) of the same name. For full text
+ * fields, the fields they index are read. Geo fields are expected as "lat,lon" strings or [lat, lon] JSON arrays.
+ * Records that cannot be mapped, such as invalid JSON or a numeric field that is not a number, are skipped and
+ * counted as well.
+ *
+ * Scanned documents are buffered in a bounded queue, so the scanners are paced by whoever reads the stream.
+ */
+public class RedisScanStream implements DocumentStream, Closeable {
+
+    /**
+     * How the documents are stored in the source database
+     */
+    public enum ValueType {
+        /** each document is a hash */
+        Hash,
+        /** each document is a string holding a JSON object */
+        JSON,
+    }
+
+    public static final int DEFAULT_BATCH_SIZE = 1000;
+
+    // end of scan marker, each scanner sends one when it's done
+    private static final Document END = new Document("");
+
+    private final Spec spec;
+    private final ValueType type;
+    private final String pattern;
+    private final String[] redisURIs;
+
+    private int batchSize = DEFAULT_BATCH_SIZE;
+    private String scoreField;
+    private String stripPrefix;
+
+    private BlockingQueue<Document> queue;
+    private List<Thread> scanners;
+    private int running;
+    private volatile boolean closed;
+    private volatile Exception failure;
+    private Document next;
+
+    private final Gson gson = new Gson();
+    private static final Type JSON_OBJECT = new TypeToken<Map<String, Object>>() {}.getType();
+
+    // keys matching the pattern that were not of the expected type
+    private final AtomicLong skippedKeys = new AtomicLong();
+    // values that could not be mapped to documents
+    private final AtomicLong invalidRecords = new AtomicLong();
+
+    /**
+     * Create a new scanner stream. Scanning starts on the first call to hasNext()
+     * @param spec the spec of the index we're reading documents for
+     * @param type the type of values holding the documents
+     * @param pattern a key pattern to filter by, e.g. "user:*"
+     * @param redisURIs the source nodes to scan
+     */
+    public RedisScanStream(Spec spec, ValueType type, String pattern, String... redisURIs) {
+        this.spec = spec;
+        this.type = type;
+        this.pattern = pattern;
+        this.redisURIs = redisURIs;
+    }
+
+    /**
+     * Set the SCAN COUNT hint, which is also the number of values fetched in a single pipeline
+     * @return the stream itself, for builder-style syntax
+     */
+    public RedisScanStream setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+        return this;
+    }
+
+    /**
+     * Set the name of a hash field or JSON property holding the score of the document
+     * @return the stream itself, for builder-style syntax
+     */
+    public RedisScanStream setScoreField(String scoreField) {
+        this.scoreField = scoreField;
+        return this;
+    }
+
+    /**
+     * Set a key prefix to strip from keys to get the document ids. e.g. with "user:" the key user:123 becomes 123
+     * @return the stream itself, for builder-style syntax
+     */
+    public RedisScanStream setStripPrefix(String stripPrefix) {
+        this.stripPrefix = stripPrefix;
+        return this;
+    }
+
+    /**
+     * @return the number of scanned keys skipped since they did not hold a value of the expected type
+     */
+    public long getSkippedKeys() {
+        return skippedKeys.get();
+    }
+
+    /**
+     * @return the number of scanned values skipped since they could not be mapped to documents
+     */
+    public long getInvalidRecords() {
+        return invalidRecords.get();
+    }
+
+    @Override
+    public synchronized Document next() throws EOFException {
+        if (!hasNext()) {
+            throw new EOFException();
+        }
+        Document ret = next;
+        next = null;
+        return ret;
+    }
+
+    @Override
+    public synchronized boolean hasNext() {
+        if (scanners == null) {
+            start();
+        }
+
+        while (next == null && running > 0 && failure == null) {
+            Document doc;
+            try {
+                doc = queue.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Interrupted waiting for scanned documents", e);
+            }
+            if (doc == END) {
+                running--;
+            } else {
+                next = doc;
+            }
+        }
+
+        // a failing node fails the stream right away, and stops the scans of the others
+        if (next == null && failure != null) {
+            close();
+            throw new RuntimeException("Error scanning source database", failure);
+        }
+        return next != null;
+    }
+
+    /**
+     * Stop scanning. Can be called from any thread
+     */
+    @Override
+    public void close() {
+        closed = true;
+        // unblock scanners waiting on a full queue
+        if (queue != null) {
+            queue.clear();
+        }
+    }
+
+    private void start() {
+        queue = new ArrayBlockingQueue<>(Math.max(batchSize * redisURIs.length * 2, 1));
+        scanners = new ArrayList<>(redisURIs.length);
+        for (final String uri : redisURIs) {
+            Thread t = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        scan(uri);
+                    } catch (Exception e) {
+                        failure = e;
+                    } finally {
+                        offer(END);
+                    }
+                }
+            }, "research-scan-" + uri);
+            t.setDaemon(true);
+            scanners.add(t);
+        }
+        running = scanners.size();
+        for (Thread t : scanners) {
+            t.start();
+        }
+    }
+
+    /**
+     * Put a document in the queue, unless we're closed
+     * @return false if we were closed while waiting
+     */
+    private boolean offer(Document doc) {
+        try {
+            while (!queue.offer(doc, 100, TimeUnit.MILLISECONDS)) {
+                if (closed) {
+                    if (doc != END) {
+                        return false;
+                    }
+                    // nobody's reading anymore, make room for the end marker
+                    queue.clear();
+                }
+            }
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Scan a single node to the end, fetching each batch of keys in one pipeline
+     */
+    private void scan(String uri) {
+
+        ScanParams params = new ScanParams().match(pattern).count(batchSize);
+        try (Jedis conn = new Jedis(URI.create(uri))) {
+            String cursor = ScanParams.SCAN_POINTER_START;
+            do {
+                ScanResult<String> res = conn.scan(cursor, params);
+                cursor = res.getStringCursor();
+                List<String> keys = res.getResult();
+                if (keys.isEmpty()) {
+                    continue;
+                }
+
+                for (Document doc : fetch(conn, keys)) {
+                    if (!offer(doc)) {
+                        return;
+                    }
+                }
+            } while (!closed && !ScanParams.SCAN_POINTER_START.equals(cursor));
+        }
+    }
+
+    /**
+     * Fetch the values of a batch of keys in a single round trip, and map them to documents
+     */
+    private List<Document> fetch(Jedis conn, List<String> keys) {
+
+        List<Document> ret = new ArrayList<>(keys.size());
+        Pipeline pipe = conn.pipelined();
+
+        switch (type) {
+            case Hash:
+                List<Response<Map<String, String>>> hashes = new ArrayList<>(keys.size());
+                for (String key : keys) {
+                    hashes.add(pipe.hgetAll(key));
+                }
+                pipe.sync();
+                for (int i = 0; i < keys.size(); i++) {
+                    Map<String, String> values = value(hashes.get(i));
+                    if (values != null && !values.isEmpty()) {
+                        add(ret, keys.get(i), values);
+                    }
+                }
+                break;
+            case JSON:
+                List<Response<String>> jsons = new ArrayList<>(keys.size());
+                for (String key : keys) {
+                    jsons.add(pipe.get(key));
+                }
+                pipe.sync();
+                for (int i = 0; i < keys.size(); i++) {
+                    String json = value(jsons.get(i));
+                    if (json != null && !json.isEmpty()) {
+                        Map<String, Object> values;
+                        try {
+                            values = gson.fromJson(json, JSON_OBJECT);
+                        } catch (JsonParseException e) {
+                            invalidRecords.incrementAndGet();
+                            continue;
+                        }
+                        if (values != null) {
+                            add(ret, keys.get(i), values);
+                        }
+                    }
+                }
+                break;
+        }
+        return ret;
+    }
+
+    /**
+     * Map a value to a document and add it, or count it as invalid if it cannot be mapped
+     */
+    private void add(List<Document> docs, String key, Map<String, ?> values) {
+        try {
+            docs.add(toDocument(key, values));
+        } catch (IllegalArgumentException e) {
+            invalidRecords.incrementAndGet();
+        }
+    }
+
+    /**
+     * @return the value of a pipelined response, or null if the key was not of the expected type
+     */
+    private <T> T value(Response<T> response) {
+        try {
+            return response.get();
+        } catch (JedisDataException e) {
+            if (e.getMessage() == null || !e.getMessage().startsWith("WRONGTYPE")) {
+                throw e;
+            }
+            skippedKeys.incrementAndGet();
+            return null;
+        }
+    }
+
+    /**
+     * Map a raw value to a document, based on the spec's fields
+     *
+     * @throws IllegalArgumentException if a numeric or geo value cannot be parsed
+     */
+    Document toDocument(String key, Map<String, ?> values) {
+
+        String id = key;
+        if (stripPrefix != null && key.startsWith(stripPrefix)) {
+            id = key.substring(stripPrefix.length());
+        }
+        Document doc = new Document(id);
+
+        if (scoreField != null && values.get(scoreField) != null) {
+            doc.setScore((float) toDouble(values.get(scoreField)));
+        }
+
+        for (Spec.Field field : spec.fields) {
+            switch (field.type) {
+                case FullText:
+                    for (String name : ((Spec.FulltextField) field).fields.keySet()) {
+                        Object v = values.get(name);
+                        if (v != null) {
+                            doc.set(name, v.toString());
+                        }
+                    }
+                    break;
+                case Prefix:
+                    Object v = values.get(field.name);
+                    if (v != null) {
+                        doc.set(field.name, v.toString());
+                    }
+                    break;
+                case Numeric:
+                    v = values.get(field.name);
+                    if (v != null) {
+                        doc.set(field.name, toDouble(v));
+                    }
+                    break;
+                case Geo:
+                    v = values.get(field.name);
+                    if (v != null) {
+                        doc.set(field.name, toLatLon(v));
+                    }
+                    break;
+            }
+        }
+        return doc;
+    }
+
+    private static double toDouble(Object v) {
+        return v instanceof Number ? ((Number) v).doubleValue() : Double.parseDouble(v.toString().trim());
+    }
+
+    private static Double[] toLatLon(Object v) {
+        if (v instanceof List && ((List<?>) v).size() == 2) {
+            List<?> lst = (List<?>) v;
+            return new Double[]{toDouble(lst.get(0)), toDouble(lst.get(1))};
+        }
+        String[] parts = v.toString().split(",");
+        if (parts.length != 2) {
+            throw new IllegalArgumentException("Invalid lat,lon value: " + v);
+        }
+        return new Double[]{toDouble(parts[0]), toDouble(parts[1])};
+    }
+}
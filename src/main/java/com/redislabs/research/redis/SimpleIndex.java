@@ -1,7 +1,11 @@
 package com.redislabs.research.redis;
 
+import ch.hsr.geohash.BoundingBox;
+import ch.hsr.geohash.GeoHash;
+import ch.hsr.geohash.WGS84Point;
 import com.matttproud.quantile.Estimator;
 import com.matttproud.quantile.Quantile;
+import com.redislabs.luascript.LuaScript;
 import com.redislabs.research.Index;
 import redis.clients.jedis.*;
 import com.redislabs.research.Document;
@@ -13,8 +17,12 @@ import com.redislabs.research.text.NaiveNormalizer;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 
 import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 
 
 /**
@@ -34,9 +42,157 @@ public class SimpleIndex extends BaseIndex {
     }
 
     // a map of type to encoder
-    private Map<String, Encoder> encoders = new HashMap<>();
+    private Map<String, Encoder<?>> encoders = new HashMap<>();
 
-    private Encoder scoreEncoder = new Encoders.Numeric();
+    // removes all the entries listed in a document's reverse record, and the record itself
+    private LuaScript purgeEntries;
+    private LuaScript addTopK;
+    private LuaScript walkBuckets;
+
+    /**
+     * How get() walks the score buckets of a query
+     */
+    public enum BucketWalk {
+        /** One blocking request per bucket, stopping when the limit is reached */
+        Serial,
+        /** All the buckets in a single pipeline */
+        Pipelined,
+        /** A server side script walking the buckets in one call, stopping when the limit is reached */
+        Script,
+    }
+
+    private BucketWalk bucketWalk = BucketWalk.Pipelined;
+
+    /** The default limit of entries an ascending score sort reads from a bucket */
+    public static final int DEFAULT_MAX_SORT_SCAN = 10000;
+
+    private int maxSortScan = DEFAULT_MAX_SORT_SCAN;
+
+    /**
+     * The layout of the entries written to the sorted set. Entries are read according to the current layout, so
+     * the sorted set should be dropped and the documents re-indexed after switching it
+     */
+    public enum Layout {
+        /** [bucket]value: per field, then :[score]:[id] */
+        Legacy,
+        /**
+         * [bucket]value: per prefix field and the bare value of fixed width fields, then
+         * [score][id][id length][0x00]. The trailing 0x00 is the layout version. Entries of specs with a geo field
+         * end with [id length][lat][lon][0x01] instead, keeping the exact location for distance filtering.
+         * With an id dictionary ids have a fixed width, so entries end with [score][id] or [score][id][lat][lon]
+         */
+        Compact,
+    }
+
+    /** The last byte of compact entries */
+    static final byte COMPACT_V1 = 0x00;
+    /** The last byte of compact entries that carry a location */
+    static final byte COMPACT_GEO_V1 = 0x01;
+
+    // how many more entries queries fetch when some are dropped by the distance filter or as duplicates, and by
+    // how much they grow the walk each time too few entries pass
+    static final int FILTER_OVERFETCH = 2;
+
+    // write suffixes of the first field as compact suffix entries
+    private boolean compactSuffixes = false;
+
+    private Layout layout = Layout.Legacy;
+
+    // KEYS[1] is the index sorted set, ARGV[1] the number of entries wanted or -1 for all of them, ARGV[2] the
+    // command scanning a range (ZRANGEBYLEX or ZREVRANGEBYLEX), followed by the buckets: the number of ranges in
+    // the bucket, followed by the bound pairs of the ranges in the command's order.
+    // returns the entries of each range of each bucket walked.
+    // script arguments and replies are strings, so the binary bounds and entries travel as latin-1 text: bytes
+    // 0x80-0xff are sent as the two byte utf-8 encoding of the character of the same value
+    static final String WALK_BUCKETS_LUA = "local function decode(s)\n" +
+            "    return (string.gsub(s, '[\\194\\195][\\128-\\191]', function(c)\n" +
+            "        return string.char((string.byte(c, 1) - 192) * 64 + string.byte(c, 2) - 128)\n" +
+            "    end))\n" +
+            "end\n" +
+            "local function encode(s)\n" +
+            "    return (string.gsub(s, '[\\128-\\255]', function(c)\n" +
+            "        local b = string.byte(c)\n" +
+            "        return string.char(192 + math.floor(b / 64), 128 + b % 64)\n" +
+            "    end))\n" +
+            "end\n" +
+            "local wanted = tonumber(ARGV[1])\n" +
+            "local cmd = ARGV[2]\n" +
+            "local whole = tonumber(ARGV[3])\n" +
+            "local ret = {}\n" +
+            "local total = 0\n" +
+            "local i = 4\n" +
+            "while i <= #ARGV do\n" +
+            "    local n = tonumber(ARGV[i])\n" +
+            "    local bucket = {}\n" +
+            "    local found = 0\n" +
+            "    for r = 1, n do\n" +
+            "        local from, to = decode(ARGV[i + r * 2 - 1]), decode(ARGV[i + r * 2])\n" +
+            "        local res\n" +
+            "        if wanted < 0 then\n" +
+            "            res = redis.call(cmd, KEYS[1], from, to)\n" +
+            "        elseif whole > 0 then\n" +
+            "            res = redis.call(cmd, KEYS[1], from, to, 'LIMIT', 0, whole)\n" +
+            "        else\n" +
+            "            res = redis.call(cmd, KEYS[1], from, to, 'LIMIT', 0, wanted - total)\n" +
+            "        end\n" +
+            "        for e = 1, #res do\n" +
+            "            res[e] = encode(res[e])\n" +
+            "        end\n" +
+            "        table.insert(bucket, res)\n" +
+            "        found = found + #res\n" +
+            "    end\n" +
+            "    table.insert(ret, bucket)\n" +
+            "    total = total + found\n" +
+            "    i = i + 1 + n * 2\n" +
+            "    if wanted >= 0 and total >= wanted then\n" +
+            "        break\n" +
+            "    end\n" +
+            "end\n" +
+            "return ret\n";
+
+    /**
+     * A lua snippet replacing the items of a record decoded with DECODE_RECORD_LUA by the entries they encode,
+     * see RecordWriter
+     */
+    static final String DECODE_ENTRIES_LUA = "local trailer = items[1]\n" +
+            "local prev = ''\n" +
+            "local entries = {}\n" +
+            "for n = 2, #items do\n" +
+            "    local item = items[n]\n" +
+            "    local header = string.byte(item, 1) * 256 + string.byte(item, 2)\n" +
+            "    local body = string.sub(prev, 1, header % 32768) .. string.sub(item, 3)\n" +
+            "    prev = body\n" +
+            "    if header >= 32768 then\n" +
+            "        body = body .. trailer\n" +
+            "    end\n" +
+            "    entries[n - 1] = body\n" +
+            "end\n" +
+            "items = entries\n";
+
+    // the maximal number of ranges IN filters can expand into
+    static final int MAX_IN_EXPANSION = 1024;
+
+    // the maximal number of candidate prefixes a fuzzy prefix filter expands into
+    static final int MAX_FUZZY_CANDIDATES = 64;
+
+    // how many entries are appended to a reverse record at once while indexing
+    private static final int RECORD_BATCH = 256;
+
+    // the maximal number of entries indexed per document, 0 means unlimited
+    private int maxEntriesPerDocument = 0;
+
+    // how many documents were truncated because of maxEntriesPerDocument
+    private final AtomicLong truncatedDocuments = new AtomicLong();
+
+    // optional in-process cache of query results
+    private volatile NearCache nearCache;
+
+    // the size of the materialized top-K lists, and the longest prefix they are kept for. 0 disables them
+    private int topK = 0;
+    private int topKPrefixLength = 0;
+
+    // the bigrams of all prefix field values, used to expand fuzzy prefix filters. null if disabled
+    private volatile NgramDictionary ngrams;
 
     /**
      * Constructor
@@ -50,6 +206,262 @@ public class SimpleIndex extends BaseIndex {
 
         createEncoders(spec);
 
+        try {
+            initScripts(redisURI);
+        } catch (IOException e) {
+            throw new RuntimeException("Could not load index scripts", e);
+        }
+    }
+
+    /**
+     * Cap the number of entries a single document can fan out into. Entries beyond the cap are not indexed,
+     * and the document is counted in getTruncatedDocuments()
+     *
+     * @param maxEntriesPerDocument the maximal number of entries per document, 0 for no limit
+     * @return the index itself
+     */
+    public SimpleIndex setMaxEntriesPerDocument(int maxEntriesPerDocument) {
+        this.maxEntriesPerDocument = maxEntriesPerDocument;
+        return this;
+    }
+
+    /**
+     * Set the way get() walks the score buckets. The default is Pipelined
+     *
+     * @param bucketWalk the walk mode
+     * @return the index itself
+     */
+    public SimpleIndex setBucketWalk(BucketWalk bucketWalk) {
+        this.bucketWalk = bucketWalk;
+        return this;
+    }
+
+    /**
+     * Limit the entries a query sorted by ascending score may read from a single bucket. Entries are lexically
+     * ordered within a bucket, so such queries read and sort the whole buckets they walk, and fail if a bucket
+     * holds more entries than this. Queries without a limit read all their entries anyway, and are not checked
+     *
+     * @param maxSortScan the most entries read from a bucket
+     * @return the index itself
+     */
+    public SimpleIndex setMaxSortScan(int maxSortScan) {
+        this.maxSortScan = maxSortScan;
+        return this;
+    }
+
+    /**
+     * Set the layout entries are written and read in. The default is Legacy. Existing entries are not readable in
+     * another layout, so the index should be dropped and the documents re-indexed after changing it
+     *
+     * @param layout the new layout
+     * @return the index itself
+     */
+    public SimpleIndex setLayout(Layout layout) {
+        this.layout = layout;
+        return this;
+    }
+
+    /**
+     * Write the suffixes of the first field, which must be a prefix field indexing its suffixes, as compact
+     * suffix entries. These only hold the suffix, the score and the fixed width internal id of the document, so
+     * they require the compact layout and an id dictionary. Suffix entries only match filters on the first field,
+     * and documents found through several of their suffixes are returned once
+     *
+     * @param compactSuffixes whether to write compact suffix entries
+     * @return the index itself
+     */
+    public SimpleIndex setCompactSuffixes(boolean compactSuffixes) {
+        if (compactSuffixes && !(spec.fields.get(0) instanceof Spec.PrefixField &&
+                ((Spec.PrefixField) spec.fields.get(0)).indexSuffixes)) {
+            throw new RuntimeException("Compact suffixes require a suffix indexed prefix field first in the spec");
+        }
+        this.compactSuffixes = compactSuffixes;
+        return this;
+    }
+
+    /**
+     * @return true if some prefix field indexes its suffixes, so a document may match several times
+     */
+    private boolean hasSuffixes() {
+        for (Spec.Field field : spec.fields) {
+            if (field instanceof Spec.PrefixField && ((Spec.PrefixField) field).indexSuffixes) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return true if a field of this type is followed by a separator in the current layout. Fixed width values
+     * do not need one in the compact layout
+     */
+    private boolean separated(Spec.IndexingType type) {
+        return layout == Layout.Legacy || type == Spec.IndexingType.Prefix;
+    }
+
+    /**
+     * Keep a score ordered list of the top K documents for every prefix of up to maxPrefixLength characters of
+     * the first field, which must be a prefix field. Prefix queries for such short prefixes are then served from
+     * the lists instead of walking the buckets, as long as the requested page is within the top K.
+     * Only documents indexed after enabling the lists are in them, so the documents should be re-indexed
+     *
+     * @param maxPrefixLength the longest prefix, in characters, to keep a list for. 0 disables the lists
+     * @param k               the number of documents kept per prefix
+     * @return the index itself
+     */
+    public SimpleIndex setTopK(int maxPrefixLength, int k) {
+        if (maxPrefixLength > 0 && (spec.fields.isEmpty() || spec.fields.get(0).type != Spec.IndexingType.Prefix)) {
+            throw new RuntimeException("Top-K lists require a prefix field first in the spec");
+        }
+        if (maxPrefixLength > 0 && k <= 0) {
+            throw new RuntimeException("Top-K lists must have a positive size");
+        }
+        this.topKPrefixLength = maxPrefixLength;
+        this.topK = maxPrefixLength > 0 ? k : 0;
+        return this;
+    }
+
+    /**
+     * Enable fuzzy prefix filters, by keeping a dictionary of the character bigrams of all prefix field values.
+     * Only values indexed after enabling them are in the dictionary, so the documents should be re-indexed
+     *
+     * @param enabled whether to maintain the dictionary
+     * @return the index itself
+     */
+    public SimpleIndex setFuzzyPrefix(boolean enabled) {
+        this.ngrams = enabled ? new NgramDictionary(ngramsKey()) : null;
+        return this;
+    }
+
+    /**
+     * @return the key of the bigram dictionary of the index
+     */
+    String ngramsKey() {
+        return "n:" + name;
+    }
+
+    /**
+     * @return the key of the top-K list of a prefix
+     */
+    String topKKey(String prefix) {
+        return "t:" + name + ":" + prefix;
+    }
+
+    /**
+     * @return the key of the hash holding, per prefix, the highest score ever trimmed from its top-K list.
+     * A list holds every document with a higher score than that, so only such entries can be served from it
+     */
+    String topKFloorsKey() {
+        return "t:" + name;
+    }
+
+    /**
+     * Serve repeated queries from an in-process cache. Cached results are invalidated when this index is
+     * written to, and within the cache's generation check interval when another process writes to it
+     *
+     * @param nearCache the cache, or null to disable caching
+     * @return the index itself
+     */
+    public SimpleIndex setNearCache(NearCache nearCache) {
+        this.nearCache = nearCache;
+        return this;
+    }
+
+    public NearCache getNearCache() {
+        return nearCache;
+    }
+
+    /**
+     * @return the key of the index generation counter, bumped on every write to the index
+     */
+    String generationKey() {
+        return "g:" + name;
+    }
+
+    /**
+     * Invalidate the local cache after a write to the index
+     */
+    private void bumpGeneration() {
+        NearCache cache = nearCache;
+        if (cache != null) {
+            cache.invalidate();
+        }
+    }
+
+    /**
+     * @return the number of documents indexed only partially since they exceeded the entries per document cap
+     */
+    public long getTruncatedDocuments() {
+        return truncatedDocuments.get();
+    }
+
+    private void initScripts(String redisURI) throws IOException {
+        // KEYS[1] is the index sorted set, KEYS[2] the document's reverse record
+        purgeEntries = LuaScript.fromSource("local rec = redis.call('GET', KEYS[2])\n" +
+                "if not rec then\n" +
+                "    return 0\n" +
+                "end\n" +
+                DECODE_RECORD_LUA +
+                DECODE_ENTRIES_LUA +
+                "for i = 1, #items, 1000 do\n" +
+                "    redis.call('ZREM', KEYS[1], unpack(items, i, math.min(i + 999, #items)))\n" +
+                "end\n" +
+                "redis.call('DEL', KEYS[2])\n" +
+                // ARGV, if given, are the top-K list key prefix, the longest prefix and the document's member.
+                // the lists the document is in are found from the prefixes of its first field values
+                "if ARGV[1] then\n" +
+                "    local maxlen = tonumber(ARGV[2])\n" +
+                "    local seen = {}\n" +
+                "    for _, item in ipairs(items) do\n" +
+                "        local sep = string.find(item, ':', 2, true)\n" +
+                "        local value = string.sub(item, 2, (sep or 1) - 1)\n" +
+                "        local chars = 0\n" +
+                "        for n = 1, #value do\n" +
+                "            local b = string.byte(value, n + 1)\n" +
+                // only cut prefixes at utf-8 character boundaries
+                "            if not b or b < 0x80 or b >= 0xC0 then\n" +
+                "                chars = chars + 1\n" +
+                "                if chars > maxlen then\n" +
+                "                    break\n" +
+                "                end\n" +
+                "                local key = ARGV[1] .. string.sub(value, 1, n)\n" +
+                "                if not seen[key] then\n" +
+                "                    seen[key] = true\n" +
+                "                    redis.call('ZREM', key, ARGV[3])\n" +
+                "                end\n" +
+                "            end\n" +
+                "        end\n" +
+                "    end\n" +
+                "end\n" +
+                "return #items\n", redisURI);
+
+        // KEYS[1] is the top-K floors hash, followed by the top-K lists to add the document to.
+        // ARGV are the list size, the document's score and member, followed by the prefix of each list
+        addTopK = LuaScript.fromSource("local k = tonumber(ARGV[1])\n" +
+                "for i = 2, #KEYS do\n" +
+                "    redis.call('ZADD', KEYS[i], ARGV[2], ARGV[3])\n" +
+                "    local excess = redis.call('ZCARD', KEYS[i]) - k\n" +
+                "    if excess > 0 then\n" +
+                "        local trimmed = redis.call('ZRANGE', KEYS[i], excess - 1, excess - 1, 'WITHSCORES')\n" +
+                "        redis.call('ZREMRANGEBYRANK', KEYS[i], 0, excess - 1)\n" +
+                "        local floor = redis.call('HGET', KEYS[1], ARGV[i + 2])\n" +
+                "        if not floor or tonumber(trimmed[2]) > tonumber(floor) then\n" +
+                "            redis.call('HSET', KEYS[1], ARGV[i + 2], trimmed[2])\n" +
+                "        end\n" +
+                "    end\n" +
+                "end\n" +
+                "return 0\n", redisURI);
+
+        walkBuckets = LuaScript.fromSource(WALK_BUCKETS_LUA, redisURI);
+    }
+
+    /**
+     * Encode a value with the encoder of its field. Encoders are looked up by field name, and are only ever given
+     * the values of their field
+     */
+    @SuppressWarnings("unchecked")
+    private static List<byte[]> encodeValue(Encoder<?> enc, Object value) {
+        return ((Encoder<Object>) enc).encode(value);
     }
 
     private void createEncoders(Spec spec) {
@@ -61,7 +473,8 @@ public class SimpleIndex extends BaseIndex {
                     encoders.put(f.name, new Encoders.Prefix(new NaiveNormalizer(), ((Spec.PrefixField) f).indexSuffixes));
                     break;
                 case Numeric:
-                    encoders.put(f.name, new Encoders.Numeric());
+                    encoders.put(f.name, new Encoders.Numeric(f instanceof Spec.NumericField ?
+                            ((Spec.NumericField) f).encoding : Spec.NumericField.Encoding.Double));
                     break;
                 case Geo:
                     encoders.put(f.name, new Encoders.Geohash(((Spec.GeoField) f).precision));
@@ -77,7 +490,9 @@ public class SimpleIndex extends BaseIndex {
 
 
     /**
-     * index a set of coduments in the index. This is done with a single pipeline for speed
+     * index a set of coduments in the index. This is done with a single pipeline for speed.
+     * Entries written for a previous version of a document are removed, and the new entries are saved in the
+     * document's reverse record so the document can be deleted later
      *
      * @param docs a list of documents to be indexed
      */
@@ -85,138 +500,1418 @@ public class SimpleIndex extends BaseIndex {
     public Boolean index(Document... docs) throws IOException {
 
 
-        Jedis conn = pool.getResource();
-        Pipeline pipe = conn.pipelined();
-        List<byte[]> entries;
-        for (Document doc : docs) {
-            try {
-                entries = encode(doc);
-            } catch (IOException e) {
-                e.printStackTrace();
-                continue;
+        try (Jedis conn = pool.getResource()) {
+            syncBuckets(conn);
+            // allocate the internal ids of all the documents at once, so encoding them hits the dictionary's cache
+            long[] internal = internalIds(docs);
+            // entries are built lazily, but a document that cannot be encoded fails the call before anything is sent
+            EntryIterator[] iterators = new EntryIterator[docs.length];
+            for (int d = 0; d < docs.length; d++) {
+                iterators[d] = entries(docs[d]);
+            }
+
+            Pipeline pipe = conn.pipelined();
+            byte[] key = name.getBytes();
+            List<byte[]> batch = new ArrayList<>(RECORD_BATCH);
+            for (int d = 0; d < docs.length; d++) {
+                Document doc = docs[d];
+                EntryIterator entries = iterators[d];
+
+                String recKey = recordKey(doc.getId());
+                String member = internal != null ? Long.toString(internal[d]) : doc.getId();
+                purge(pipe, recKey, member);
+
+                // entries are sent as they are built, and appended to the reverse record in batches
+                RecordWriter record = new RecordWriter(entries.trailer());
+                if (entries.hasNext()) {
+                    batch.add(record.header());
+                }
+                while (entries.hasNext()) {
+                    byte[] entry = entries.next();
+                    pipe.zadd(key, 0, entry);
+                    batch.add(record.item(entry));
+                    if (batch.size() == RECORD_BATCH || !entries.hasNext()) {
+                        pipe.append(recKey.getBytes(), encodeRecord(batch));
+                        batch.clear();
+                    }
+                }
+
+                if (topK > 0) {
+                    indexTopK(pipe, doc, member);
+                }
+                if (ngrams != null) {
+                    List<byte[]> values = new ArrayList<>();
+                    for (Spec.Field field : spec.fields) {
+                        if (field.type == Spec.IndexingType.Prefix && doc.hasProperty(field.name)) {
+                            values.addAll(encodeValue(encoders.get(field.name), doc.property(field.name)));
+                        }
+                    }
+                    ngrams.add(pipe, values);
+                }
+
+            }
+            pipe.incr(generationKey());
+            pipe.sync();
+        }
+        bumpGeneration();
+
+
+        return true;
+
+    }
+
+    /**
+     * Remove a document's entries using its reverse record, along with its top-K list memberships
+     */
+    private void purge(Pipeline pipe, String recKey, String member) {
+        if (topK > 0) {
+            purgeEntries.execute(pipe, 2, name, recKey, topKKey(""), Integer.toString(topKPrefixLength), member);
+        } else {
+            purgeEntries.execute(pipe, 2, name, recKey);
+        }
+    }
+
+    /**
+     * Add a document to the top-K lists of the short prefixes of its first field values
+     */
+    private void indexTopK(Pipeline pipe, Document doc, String member) {
+        Spec.Field field = spec.fields.get(0);
+        Object value = doc.property(field.name);
+        if (value == null) {
+            return;
+        }
+
+        Set<String> prefixes = new LinkedHashSet<>();
+        for (byte[] encoded : encodeValue(encoders.get(field.name), value)) {
+            String str = new String(encoded);
+            int len = Math.min(topKPrefixLength, str.codePointCount(0, str.length()));
+            for (int n = 1; n <= len; n++) {
+                prefixes.add(str.substring(0, str.offsetByCodePoints(0, n)));
+            }
+        }
+        if (prefixes.isEmpty()) {
+            return;
+        }
+
+        List<String> args = new ArrayList<>(1 + prefixes.size() * 2 + 3);
+        args.add(topKFloorsKey());
+        for (String prefix : prefixes) {
+            args.add(topKKey(prefix));
+        }
+        args.add(Integer.toString(topK));
+        args.add(Float.toString(doc.getScore()));
+        args.add(member);
+        args.addAll(prefixes);
+        addTopK.execute(pipe, 1 + prefixes.size(), args.toArray(new String[args.size()]));
+    }
+
+    /**
+     * Get the top-K list prefix that can serve a query: a prefix filter on the first field, short enough to
+     * have a list, with a page that is within the list's size. The lists know nothing of the other fields, so
+     * the prefix must be the query's only filter
+     *
+     * @return the prefix, or null if the query should walk the buckets
+     */
+    private String topKPrefix(Query q, int wanted) {
+        if (topK == 0 || wanted < 0 || wanted > topK || q.filters.size() != 1) {
+            return null;
+        }
+        Spec.Field field = spec.fields.get(0);
+        Query.Filter<?> flt = q.filters.get(0);
+        if (!flt.property.equals(field.name) || flt.op != Query.Op.Prefix || flt.values.length != 1) {
+            return null;
+        }
+        String prefix = new String(encodeValue(encoders.get(field.name), flt.values[0]).get(0));
+        int len = prefix.codePointCount(0, prefix.length());
+        return len > 0 && len <= topKPrefixLength ? prefix : null;
+    }
+
+    /**
+     * Read a page of a top-K list
+     *
+     * @return the page, or null if the list cannot be trusted for it, since entries may have been trimmed
+     */
+    private List<Entry> readTopK(String prefix, int offset, int limit) {
+        Response<Set<Tuple>> top;
+        Response<String> floor;
+        try (Jedis conn = pool.getResource()) {
+            Pipeline pipe = conn.pipelined();
+            top = pipe.zrevrangeWithScores(topKKey(prefix), offset, offset + limit - 1);
+            floor = pipe.hget(topKFloorsKey(), prefix);
+            pipe.sync();
+        }
+
+        List<Tuple> tuples = new ArrayList<>(top.get());
+        if (floor.get() != null) {
+            // a short page may be missing trimmed entries, and so may a page ending below the floor
+            if (tuples.size() < limit || tuples.get(tuples.size() - 1).getScore() <= Double.parseDouble(floor.get())) {
+                return null;
+            }
+        }
+
+        if (idDictionary != null) {
+            long[] internal = new long[tuples.size()];
+            double[] scores = new double[tuples.size()];
+            for (int i = 0; i < internal.length; i++) {
+                internal[i] = Long.parseLong(tuples.get(i).getElement());
+                scores[i] = tuples.get(i).getScore();
+            }
+            return externalEntries(internal, scores);
+        }
+        List<Entry> ret = new ArrayList<>(tuples.size());
+        for (Tuple t : tuples) {
+            ret.add(new Entry(t.getElement(), t.getScore()));
+        }
+        return ret;
+    }
+
+    /**
+     * Takes the raw encoded query from the sorted set and extracts id and score by decoding it.
+     * e.g. "world::?\xf0\x00\x00:doc1" --> Entry(id: doc1, score: 1.0), or in the compact layout
+     * "world:?\xf0\x00\x00doc1\x04\x00" --> Entry(id: doc1, score: 1.0)
+     *
+     * @param raw the raw entry in the sorted set
+     * @return a new Entry object
+     */
+    Entry extractEntry(byte[] raw) {
+        return cursor().reset(raw).entry();
+    }
+
+    /**
+     * @return a new cursor over the entries of this index
+     */
+    EntryCursor cursor() {
+        return new EntryCursor(layout, idDictionary != null ? idDictionary.getWidth().bytes : 0, located());
+    }
+
+    /**
+     * @return true if entries carry the location of their document, which is the case for compact entries of
+     * specs with a geo field
+     */
+    private boolean located() {
+        if (layout != Layout.Compact) {
+            return false;
+        }
+        for (Spec.Field field : spec.fields) {
+            if (field.type == Spec.IndexingType.Geo) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * A flyweight decoder over raw sorted set entries. The separator offsets are parsed once per entry, the score
+     * is read directly from the raw bytes, and the id string is only created when it is actually read.
+     * A single cursor is reset over all the entries of a reply
+     */
+    static final class EntryCursor {
+
+        private final Layout layout;
+        // the width of ids written by an id dictionary, or 0 if ids are strings of any length
+        private final int idWidth;
+        // whether compact entries with fixed width ids end with a location
+        private final boolean located;
+
+        private byte[] raw;
+        private int scoreIdx;
+        private int idIdx;
+        private int idLen;
+        // the offset of the entry's location, or -1 if it has none
+        private int geoIdx;
+
+        /**
+         * @param layout  the layout the entries were written in
+         * @param idWidth the width of ids written by an id dictionary, or 0 if ids are strings of any length
+         * @param located whether compact entries carry a location
+         */
+        EntryCursor(Layout layout, int idWidth, boolean located) {
+            this.layout = layout;
+            this.idWidth = idWidth;
+            this.located = located;
+        }
+
+        /**
+         * Point the cursor at a new raw entry
+         *
+         * @param raw the raw entry in the sorted set
+         * @return the cursor itself
+         */
+        EntryCursor reset(byte[] raw) {
+            this.raw = raw;
+            geoIdx = -1;
+            if (layout == Layout.Compact && idWidth > 0) {
+                // [score][id] or [score][id][lat][lon], without a length or a version
+                idLen = idWidth;
+                idIdx = raw.length - idWidth - (located ? 8 : 0);
+                scoreIdx = idIdx - 4;
+                if (scoreIdx < 0) {
+                    throw new RuntimeException("Invalid compact entry: " + new String(raw));
+                }
+                geoIdx = located ? raw.length - 8 : -1;
+                return this;
+            }
+            if (layout == Layout.Compact) {
+                // compact entries end with [score][id][id length][version], or with
+                // [score][id][id length][lat][lon][version] if the spec has a geo field. the version only checks
+                // the layout, which is known from the spec
+                int end = raw.length - 1;
+                if (end < 0 || raw[end] != (located ? COMPACT_GEO_V1 : COMPACT_V1)) {
+                    throw new RuntimeException("Invalid compact entry: " + new String(raw));
+                }
+                if (located) {
+                    end -= 8;
+                    geoIdx = end;
+                }
+                idLen = end > 0 ? raw[end - 1] & 0xff : 0;
+                idIdx = end - 1 - idLen;
+                scoreIdx = idIdx - 4;
+                if (end <= 0 || scoreIdx < 0) {
+                    throw new RuntimeException("Invalid compact entry: " + new String(raw));
+                }
+                return this;
+            }
+            if (idWidth > 0) {
+                // fixed width ids may contain any byte, so we read ::[score]:[id] from the end
+                idLen = idWidth;
+                idIdx = raw.length - idWidth;
+                scoreIdx = idIdx - 5;
+                if (scoreIdx < 2 || raw[idIdx - 1] != SEPARATOR || raw[scoreIdx - 1] != SEPARATOR ||
+                        raw[scoreIdx - 2] != SEPARATOR) {
+                    throw new RuntimeException("Invalid id entry: " + new String(raw));
+                }
+                return this;
+            }
+            // the score is the 4 bytes after the first double separator, followed by a separator and the id
+            for (int i = 0; i < raw.length - 6; i++) {
+                if (raw[i] == SEPARATOR && raw[i + 1] == SEPARATOR && raw[i + 6] == SEPARATOR) {
+                    scoreIdx = i + 2;
+                    idIdx = scoreIdx + 5;
+                    idLen = raw.length - idIdx;
+                    return this;
+                }
+            }
+            throw new RuntimeException("Invalid id entry: " + new String(raw));
+        }
+
+        /**
+         * @return the offset of the score, which is followed by the id and the rest of the entry's trailer
+         */
+        int trailerOffset() {
+            return scoreIdx;
+        }
+
+        float score() {
+            return Float.intBitsToFloat((raw[scoreIdx] & 0xff) << 24 | (raw[scoreIdx + 1] & 0xff) << 16 |
+                    (raw[scoreIdx + 2] & 0xff) << 8 | (raw[scoreIdx + 3] & 0xff));
+        }
+
+        String id() {
+            return new String(raw, idIdx, idLen);
+        }
+
+        /**
+         * @return the raw id bytes, for comparing the ids of entries without decoding them
+         */
+        ByteBuffer idBytes() {
+            return ByteBuffer.wrap(raw, idIdx, idLen).slice();
+        }
+
+        boolean hasLocation() {
+            return geoIdx >= 0;
+        }
+
+        double lat() {
+            return Encoders.Geohash.readDegrees(raw, geoIdx);
+        }
+
+        double lon() {
+            return Encoders.Geohash.readDegrees(raw, geoIdx + 4);
+        }
+
+        /**
+         * @return the id as an internal id written by an id dictionary
+         */
+        long internalId(IdDictionary dict) {
+            if (idLen != dict.getWidth().bytes) {
+                throw new RuntimeException("Invalid internal id in entry: " + new String(raw));
+            }
+            return dict.read(raw, idIdx);
+        }
+
+        Entry entry() {
+            return new Entry(id(), score());
+        }
+    }
+
+    /**
+     * Get ids of documents indexed in the index
+     *
+     * @param q the query to look for
+     * @return a list of string ids
+     * @throws IOException
+     */
+    @Override
+    public List<Index.Entry> get(Query q) throws IOException {
+
+        int offset = q.sort != null && q.sort.offset != null ? q.sort.offset : 0;
+        Integer limit = q.sort != null ? q.sort.limit : null;
+        // paging is over the concatenation of all buckets, so we fetch everything up to offset+limit
+        int wanted = limit == null ? -1 : offset + limit;
+        if (wanted == 0) {
+            return new ArrayList<>(0);
+        }
+
+        List<List<Range>> ranges = bucketRanges(q);
+        GeoFilter geo = geoFilter(q);
+
+        // by default the best score buckets come first, in lexical order within each bucket
+        boolean sorted = q.sort != null && q.sort.by != null && !q.sort.by.isEmpty();
+        boolean ascending = sorted && Boolean.TRUE.equals(q.sort.ascending);
+        boolean lexical = sorted && !Query.Sorting.SCORE.equals(q.sort.by);
+        int sortMode = (lexical ? 2 : 0) + (ascending ? 1 : 0);
+        boolean reverse = false;
+        boolean wholeBuckets = false;
+        Comparator<byte[]> order = null;
+        if (lexical) {
+            if (!spec.fields.get(0).name.equals(q.sort.by)) {
+                throw new RuntimeException("SimpleIndex can only sort by score or by its first field");
+            }
+            // any bucket may hold the first entries in lexical order, so all the ranges are merged as one
+            List<Range> all = new ArrayList<>();
+            for (List<Range> bucket : ranges) {
+                all.addAll(bucket);
+            }
+            ranges = Collections.singletonList(all);
+            reverse = !ascending;
+            order = ascending ? lexicalOrder() : Collections.reverseOrder(lexicalOrder());
+        } else if (ascending) {
+            // entries are lexically ordered within a bucket, so its worst scores may be anywhere in it, and the
+            // buckets we walk are fetched whole, up to maxSortScan entries each
+            ranges = new ArrayList<>(ranges);
+            Collections.reverse(ranges);
+            order = scoreOrder(false);
+            wholeBuckets = true;
+        }
+
+        NearCache cache = nearCache;
+        NearCache.Key cacheKey = null;
+        long generation = 0;
+        if (cache != null) {
+            if (cache.generationCheckDue()) {
+                try (Jedis conn = pool.getResource()) {
+                    cache.observeGeneration(conn.get(generationKey()));
+                }
             }
+            cacheKey = cacheKey(ranges, offset, limit, geo, sortMode);
+            generation = cache.getGeneration();
+            List<Entry> cached = cache.get(cacheKey);
+            if (cached != null) {
+                return cached;
+            }
+        }
+
+        String prefix = sortMode == 0 ? topKPrefix(q, wanted) : null;
+        List<Entry> ret = prefix != null ? readTopK(prefix, offset, limit) : null;
+        if (ret == null) {
+            ret = fetch(ranges, offset, limit, wanted, geo, reverse, order, wholeBuckets, lexical);
+        }
+        if (cache != null) {
+            cache.put(cacheKey, ret, generation);
+        }
+        return ret;
+    }
+
+    /**
+     * Build the cache key of a query from its encoded ranges, distance filter, sorting and paging
+     */
+    private NearCache.Key cacheKey(List<List<Range>> ranges, int offset, Integer limit, GeoFilter geo,
+                                   int sortMode) {
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        buf.write(sortMode);
+        byte[] num = new byte[4];
+        for (List<Range> bucket : ranges) {
+            Encoders.Numeric.writeInt(bucket.size(), num, 0);
+            buf.write(num, 0, 4);
+            for (Range rng : bucket) {
+                Encoders.Numeric.writeInt(rng.from.length, num, 0);
+                buf.write(num, 0, 4);
+                buf.write(rng.from, 0, rng.from.length);
+                Encoders.Numeric.writeInt(rng.to.length, num, 0);
+                buf.write(num, 0, 4);
+                buf.write(rng.to, 0, rng.to.length);
+            }
+        }
+        Encoders.Numeric.writeInt(offset, num, 0);
+        buf.write(num, 0, 4);
+        Encoders.Numeric.writeInt(limit == null ? -1 : limit, num, 0);
+        buf.write(num, 0, 4);
+        if (geo != null) {
+            byte[] point = new byte[24];
+            Encoders.Numeric.writeLong(Double.doubleToLongBits(geo.lat), point, 0);
+            Encoders.Numeric.writeLong(Double.doubleToLongBits(geo.lon), point, 8);
+            Encoders.Numeric.writeLong(Double.doubleToLongBits(geo.radius), point, 16);
+            buf.write(point, 0, point.length);
+        }
+        return new NearCache.Key(buf.toByteArray());
+    }
+
+    /**
+     * Walk the buckets and decode the requested page of entries
+     *
+     * @param wholeBuckets whether every walked bucket is fetched whole, because the order of the entries is not
+     *                     the order of its ranges
+     * @param sortKeys whether the entries are sorted lexically, and keep their sort keys for merging
+     */
+    private List<Entry> fetch(List<List<Range>> ranges, int offset, Integer limit, int wanted, GeoFilter geo,
+                              boolean reverse, Comparator<byte[]> order, boolean wholeBuckets, boolean sortKeys) {
+        // the distance filter and the removal of duplicates drop some of the entries, so we fetch extra ones, and
+        // walk again asking for twice as many until enough of them pass or the ranges are exhausted
+        boolean dedup = hasSuffixes();
+        boolean filtered = geo != null || dedup;
+        int fetched = filtered && wanted > 0 ? wanted * FILTER_OVERFETCH : wanted;
+        List<byte[]> entries;
+        while (true) {
+            List<byte[]> walked = walk(ranges, fetched, reverse, order, wholeBuckets);
+            entries = filtered ? filter(walked, geo, dedup) : walked;
+            if (fetched < 0 || entries.size() >= wanted || walked.size() < fetched) {
+                break;
+            }
+            fetched = fetched > Integer.MAX_VALUE / FILTER_OVERFETCH ? -1 : fetched * FILTER_OVERFETCH;
+        }
+
+        // extract the ids from the entries. entries past the limit are never decoded
+        int num = Math.max(Math.min(entries.size() - offset, limit != null ? limit : Integer.MAX_VALUE), 0);
+        EntryCursor cursor = cursor();
+        Entry[] decoded = new Entry[num];
+        if (idDictionary != null) {
+            long[] internal = new long[num];
+            double[] scores = new double[num];
+            for (int i = 0; i < num; i++) {
+                cursor.reset(entries.get(offset + i));
+                internal[i] = cursor.internalId(idDictionary);
+                scores[i] = cursor.score();
+            }
+            // ids the dictionary does not know are dropped
+            String[] external = idDictionary.resolve(internal);
+            for (int i = 0; i < num; i++) {
+                decoded[i] = external[i] != null ? new Entry(external[i], scores[i]) : null;
+            }
+        } else {
+            for (int i = 0; i < num; i++) {
+                decoded[i] = cursor.reset(entries.get(offset + i)).entry();
+            }
+        }
+
+        // the sort keys are the entries without the score bucket, as compared by lexicalOrder()
+        int start = spec.fields.get(0).type == Spec.IndexingType.Prefix ? 1 : 0;
+        List<Entry> ids = new ArrayList<>(num);
+        for (int i = 0; i < num; i++) {
+            if (decoded[i] != null) {
+                if (sortKeys) {
+                    byte[] entry = entries.get(offset + i);
+                    decoded[i].sortKey = Arrays.copyOfRange(entry, Math.min(start, entry.length), entry.length);
+                }
+                ids.add(decoded[i]);
+            }
+        }
+        return ids;
+
+    }
+
+    // walk the buckets with the configured walk
+    private List<byte[]> walk(List<List<Range>> ranges, int wanted, boolean reverse, Comparator<byte[]> order,
+                              boolean whole) {
+        switch (bucketWalk) {
+            case Serial:
+                return walkSerial(ranges, wanted, reverse, order, whole);
+            case Script:
+                return walkScript(ranges, wanted, reverse, order, whole);
+            default:
+                return walkPipelined(ranges, wanted, reverse, order, whole);
+        }
+    }
+
+    /**
+     * Drop the entries outside the distance filter, and all but the first entry of every document
+     */
+    private List<byte[]> filter(List<byte[]> entries, GeoFilter geo, boolean dedup) {
+        EntryCursor cursor = cursor();
+        Set<ByteBuffer> seen = new HashSet<>();
+        List<byte[]> ret = new ArrayList<>(entries.size());
+        for (byte[] entry : entries) {
+            cursor.reset(entry);
+            if ((geo == null || geo.accepts(cursor)) && (!dedup || seen.add(cursor.idBytes()))) {
+                ret.add(entry);
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Expand the IN, fuzzy prefix and NEAR filters of a query into a query per combination of their alternatives:
+     * an EQ filter for each IN value, a PREFIX filter for each fuzzy prefix candidate, and a NEAR filter for the
+     * center cell and each of its neighbors. A query without such filters is returned as is
+     */
+    List<Query> expandIn(Query q) {
+        List<Query> ret = new ArrayList<>();
+        ret.add(q);
+        for (int f = 0; f < q.filters.size(); f++) {
+            Query.Filter<?> flt = q.filters.get(f);
+            List<Query.Filter<?>> alternatives = new ArrayList<>();
+            if (flt.op == Query.Op.In) {
+                for (Object value : flt.values) {
+                    alternatives.add(new Query.Filter<>(flt.property, Query.Op.Equals, value));
+                }
+            } else if (flt.op == Query.Op.FuzzyPrefix) {
+                for (String candidate : fuzzyCandidates(flt)) {
+                    alternatives.add(new Query.Filter<>(flt.property, Query.Op.Prefix, candidate));
+                }
+            } else if ((flt.op == Query.Op.Near || flt.op == Query.Op.Radius) &&
+                    encoders.get(flt.property) instanceof Encoders.Geohash) {
+                int precision = ((Encoders.Geohash) encoders.get(flt.property)).getPrecision();
+                Set<GeoHash> cells;
+                if (flt.op == Query.Op.Radius) {
+                    if (layout != Layout.Compact) {
+                        throw new RuntimeException("Radius filters require the compact layout, " +
+                                "whose entries carry their exact location");
+                    }
+                    cells = radiusCells(q, flt, precision);
+                } else {
+                    GeoHash center = GeoHash.withCharacterPrecision((Double) flt.values[0], (Double) flt.values[1],
+                            precision);
+                    // neighbors may repeat near the poles
+                    cells = new LinkedHashSet<>(9);
+                    cells.add(center);
+                    cells.addAll(Arrays.asList(center.getAdjacent()));
+                }
+                for (GeoHash cell : cells) {
+                    WGS84Point point = cell.getBoundingBoxCenterPoint();
+                    int cellPrecision = cell.getCharacterPrecision();
+                    // cells coarser than the index's precision are matched by their prefix
+                    alternatives.add(cellPrecision == precision ?
+                            new Query.Filter<>(flt.property, Query.Op.Near, point.getLatitude(), point.getLongitude()) :
+                            new Query.Filter<>(flt.property, Query.Op.Near, point.getLatitude(), point.getLongitude(),
+                                    (double) cellPrecision));
+                }
+            } else {
+                continue;
+            }
+            if (ret.size() * alternatives.size() > MAX_IN_EXPANSION) {
+                throw new RuntimeException("The " + flt.op + " filter on " + flt.property + " expands into " +
+                        alternatives.size() + " alternatives, taking the query past " + MAX_IN_EXPANSION + " ranges");
+            }
+
+            List<Query> expanded = new ArrayList<>(ret.size() * alternatives.size());
+            for (Query base : ret) {
+                for (Query.Filter<?> alternative : alternatives) {
+                    Query eq = new Query(base.indexName);
+                    eq.sort = base.sort;
+                    eq.filters.addAll(base.filters);
+                    eq.filters.set(f, alternative);
+                    expanded.add(eq);
+                }
+            }
+            ret = expanded;
+        }
+        return ret;
+    }
+
+    /**
+     * Find the cells covering the circle of a RADIUS filter. If the circle takes too many cells at the index's
+     * precision, it is covered by coarser cells, matched by their prefix, and the distance filter drops the extra
+     * entries. Ranges cannot go on past a prefix, so this is only done if no later field is filtered
+     */
+    private Set<GeoHash> radiusCells(Query q, Query.Filter<?> flt, int precision) {
+        double lat = (Double) flt.values[0];
+        double lon = (Double) flt.values[1];
+        double radius = (Double) flt.values[2];
+        Set<GeoHash> cells = coveringCells(lat, lon, radius, precision);
+        if (cells != null) {
+            return cells;
+        }
+
+        boolean last = true;
+        boolean after = false;
+        for (Spec.Field field : spec.fields) {
+            if (after) {
+                for (Query.Filter<?> other : q.filters) {
+                    last &= !other.property.equals(field.name);
+                }
+            }
+            after |= field.name.equals(flt.property);
+        }
+        for (int p = precision - 1; last && p > 0; p--) {
+            cells = coveringCells(lat, lon, radius, p);
+            if (cells != null) {
+                return cells;
+            }
+        }
+        throw new RuntimeException("Radius " + radius + "m covers more than " + MAX_IN_EXPANSION +
+                " cells at precision " + precision);
+    }
+
+    /**
+     * Find the cells at a precision that cover a circle, by walking the neighbors of the center cell as long as
+     * they intersect the circle
+     *
+     * @param radius the circle radius in meters
+     * @return the covering cells, center first, or null if there are more than MAX_IN_EXPANSION of them
+     */
+    static Set<GeoHash> coveringCells(double lat, double lon, double radius, int precision) {
+        Set<GeoHash> ret = new LinkedHashSet<>();
+        Queue<GeoHash> candidates = new LinkedList<>();
+        GeoHash center = GeoHash.withCharacterPrecision(lat, lon, precision);
+        ret.add(center);
+        candidates.add(center);
+        while (!candidates.isEmpty()) {
+            for (GeoHash neighbor : candidates.remove().getAdjacent()) {
+                if (ret.contains(neighbor)) {
+                    continue;
+                }
+                // the point of the cell nearest to the center of the circle
+                BoundingBox box = neighbor.getBoundingBox();
+                double nearLat = Math.max(box.getMinLat(), Math.min(lat, box.getMaxLat()));
+                double nearLon = Math.max(box.getMinLon(), Math.min(lon, box.getMaxLon()));
+                if (Encoders.Geohash.distance(lat, lon, nearLat, nearLon) <= radius) {
+                    if (ret.size() >= MAX_IN_EXPANSION) {
+                        return null;
+                    }
+                    ret.add(neighbor);
+                    candidates.add(neighbor);
+                }
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * An exact distance filter for the entries of geo queries. Entries that do not carry their location are
+     * accepted as is
+     */
+    static final class GeoFilter {
+        final double lat;
+        final double lon;
+        final double radius;
+
+        GeoFilter(double lat, double lon, double radius) {
+            this.lat = lat;
+            this.lon = lon;
+            this.radius = radius;
+        }
+
+        boolean accepts(EntryCursor cursor) {
+            return !cursor.hasLocation() ||
+                    Encoders.Geohash.distance(lat, lon, cursor.lat(), cursor.lon()) <= radius;
+        }
+    }
+
+    /**
+     * Get the distance filter of a query. A RADIUS filter accepts everything within its radius. A NEAR filter
+     * covers the center cell and its neighbors, so it accepts everything within the smaller dimension of a cell,
+     * which those cells always contain
+     *
+     * @return the filter, or null if the query has no geo filter
+     */
+    GeoFilter geoFilter(Query q) {
+        for (Query.Filter<?> flt : q.filters) {
+            if (flt.op == Query.Op.Radius && encoders.get(flt.property) instanceof Encoders.Geohash) {
+                return new GeoFilter((Double) flt.values[0], (Double) flt.values[1], (Double) flt.values[2]);
+            }
+            if (flt.op == Query.Op.Near && encoders.get(flt.property) instanceof Encoders.Geohash) {
+                double lat = (Double) flt.values[0];
+                double lon = (Double) flt.values[1];
+                BoundingBox box = GeoHash.withCharacterPrecision(lat, lon,
+                        ((Encoders.Geohash) encoders.get(flt.property)).getPrecision()).getBoundingBox();
+                double height = Encoders.Geohash.distance(box.getMinLat(), lon, box.getMaxLat(), lon);
+                double width = Encoders.Geohash.distance(lat, box.getMinLon(), lat, box.getMaxLon());
+                return new GeoFilter(lat, lon, Math.min(height, width));
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Expand a fuzzy prefix filter into the candidate prefixes the bigram dictionary finds plausible
+     */
+    private List<String> fuzzyCandidates(Query.Filter<?> flt) {
+        NgramDictionary dict = ngrams;
+        if (dict == null) {
+            throw new RuntimeException("Fuzzy prefix filters are not enabled for index " + name);
+        }
+        Encoder<?> enc = encoders.get(flt.property);
+        if (!(enc instanceof Encoders.Prefix)) {
+            throw new RuntimeException("Fuzzy prefix filters are only supported on prefix fields");
+        }
+        dict.refresh(pool);
+        String prefix = new String(encodeValue(enc, flt.values[0]).get(0));
+        return dict.expand(prefix, ((Number) flt.values[1]).intValue(), MAX_FUZZY_CANDIDATES);
+    }
+
+    /**
+     * Get the ranges of all score buckets for a query, best bucket first. Each bucket has a range per value
+     * combination of the query's IN filters. If the query's ranges do not depend on the score bucket, a single
+     * bucket is returned
+     */
+    List<List<Range>> bucketRanges(Query q) throws IOException {
+        List<Query> queries = expandIn(q);
+        int numBuckets = bestim.numBuckets();
+        List<List<Range>> ret = new ArrayList<>(numBuckets);
+        for (byte i = 0; i < numBuckets; i++) {
+            List<Range> ranges = new ArrayList<>(queries.size());
+            boolean same = i == 1;
+            for (int n = 0; n < queries.size(); n++) {
+                Range rng = new Range(queries.get(n), i);
+                if (same) {
+                    Range first = ret.get(0).get(n);
+                    same = Arrays.equals(rng.from, first.from) && Arrays.equals(rng.to, first.to);
+                }
+                ranges.add(rng);
+            }
+            if (same) {
+                break;
+            }
+            ret.add(ranges);
+        }
+        return ret;
+    }
+
+    /**
+     * Orders entries by their score. The comparator reuses its cursors, so it is not thread safe
+     *
+     * @param descending whether the best score comes first
+     */
+    private Comparator<byte[]> scoreOrder(final boolean descending) {
+        final EntryCursor c1 = cursor();
+        final EntryCursor c2 = cursor();
+        return new Comparator<byte[]>() {
+            @Override
+            public int compare(byte[] o1, byte[] o2) {
+                int cmp = Float.compare(c1.reset(o1).score(), c2.reset(o2).score());
+                return descending ? -cmp : cmp;
+            }
+        };
+    }
+
+    /**
+     * Orders entries lexically, ignoring the score bucket of a leading prefix field
+     */
+    private Comparator<byte[]> lexicalOrder() {
+        final int start = spec.fields.get(0).type == Spec.IndexingType.Prefix ? 1 : 0;
+        return new Comparator<byte[]>() {
+            @Override
+            public int compare(byte[] o1, byte[] o2) {
+                for (int i = start; i < o1.length && i < o2.length; i++) {
+                    if (o1[i] != o2[i]) {
+                        return (o1[i] & 0xff) - (o2[i] & 0xff);
+                    }
+                }
+                return o1.length - o2.length;
+            }
+        };
+    }
+
+    /**
+     * Add the entries of a bucket's ranges to the result. Each range only contributes the entries we may still
+     * need, and the entries are merged in the walk order. By default a single range keeps its lexical order, and
+     * the entries of several ranges are merged by score
+     *
+     * @param ret the entries collected so far
+     * @param results the entries of each range in the bucket
+     * @param wanted how many entries we want in total, or -1 for all of them
+     * @param order the order of the entries in the result, or null for the default
+     * @param whole whether the ranges hold the whole bucket, to be sorted before taking what we need
+     */
+    private void addBucket(List<byte[]> ret, List<? extends Collection<byte[]>> results, int wanted,
+                           Comparator<byte[]> order, boolean whole) {
+        int need = wanted < 0 ? Integer.MAX_VALUE : wanted - ret.size();
+        if (order == null && results.size() == 1) {
+            for (byte[] entry : results.get(0)) {
+                if (need-- <= 0) {
+                    break;
+                }
+                ret.add(entry);
+            }
+            return;
+        }
+
+        List<byte[]> merged = new ArrayList<>();
+        if (whole && wanted >= 0) {
+            long found = 0;
+            for (Collection<byte[]> res : results) {
+                found += res.size();
+            }
+            checkSortScan(found);
+        }
+        for (Collection<byte[]> res : results) {
+            int n = whole ? Integer.MAX_VALUE : need;
+            for (byte[] entry : res) {
+                if (n-- <= 0) {
+                    break;
+                }
+                merged.add(entry);
+            }
+        }
+        Collections.sort(merged, order != null ? order : scoreOrder(true));
+        ret.addAll(whole && need < merged.size() ? merged.subList(0, Math.max(need, 0)) : merged);
+    }
+
+    /**
+     * Fail a query that would have to read and sort more than maxSortScan entries of a bucket
+     */
+    private void checkSortScan(long found) {
+        if (found > maxSortScan) {
+            throw new RuntimeException("Sorting by ascending score reads whole score buckets, and a bucket of this " +
+                    "query holds more than " + maxSortScan + " entries. Narrow the query or sort by descending score");
+        }
+    }
+
+    // one blocking ZRANGEBYLEX per range, stopping after the bucket in which we have enough entries
+    private List<byte[]> walkSerial(List<List<Range>> buckets, int wanted, boolean reverse,
+                                    Comparator<byte[]> order, boolean whole) {
+        List<byte[]> ret = new ArrayList<>();
+        try (Jedis conn = pool.getResource()) {
+            for (List<Range> ranges : buckets) {
+                List<Set<byte[]>> results = new ArrayList<>(ranges.size());
+                for (Range rng : ranges) {
+                    if (reverse) {
+                        results.add(wanted < 0 ? conn.zrevrangeByLex(name.getBytes(), rng.to, rng.from) :
+                                conn.zrevrangeByLex(name.getBytes(), rng.to, rng.from, 0,
+                                        whole ? maxSortScan + 1 : wanted - ret.size()));
+                    } else {
+                        results.add(wanted < 0 ? conn.zrangeByLex(name.getBytes(), rng.from, rng.to) :
+                                conn.zrangeByLex(name.getBytes(), rng.from, rng.to, 0,
+                                        whole ? maxSortScan + 1 : wanted - ret.size()));
+                    }
+                }
+                addBucket(ret, results, wanted, order, whole);
+                if (wanted >= 0 && ret.size() >= wanted) {
+                    break;
+                }
+            }
+        }
+        return ret;
+    }
+
+    // the ranges of the first bucket in one pipeline, along with the sizes of the ranges of the other buckets.
+    // if the first bucket is not enough, a second pipeline fetches only the buckets and entries still needed
+    private List<byte[]> walkPipelined(List<List<Range>> buckets, int wanted, boolean reverse,
+                                       Comparator<byte[]> order, boolean whole) {
+        List<byte[]> ret = new ArrayList<>();
+        if (buckets.isEmpty()) {
+            return ret;
+        }
+        List<List<Response<Set<byte[]>>>> responses = new ArrayList<>(buckets.size());
+        List<List<Response<Long>>> counts = new ArrayList<>(buckets.size());
+        try (Jedis conn = pool.getResource()) {
+            Pipeline pipe = conn.pipelined();
+            for (int i = 0; i < buckets.size(); i++) {
+                if (i == 0 || wanted < 0) {
+                    responses.add(rangesOf(pipe, buckets.get(i), whole && wanted >= 0 ? maxSortScan + 1 : wanted,
+                            reverse));
+                } else {
+                    List<Response<Long>> bucket = new ArrayList<>(buckets.get(i).size());
+                    for (Range rng : buckets.get(i)) {
+                        bucket.add(pipe.zlexcount(name.getBytes(), rng.from, rng.to));
+                    }
+                    counts.add(bucket);
+                }
+            }
+            pipe.sync();
+
+            if (wanted >= 0) {
+                addBucket(ret, results(responses.get(0)), wanted, order, whole);
+                responses.clear();
+
+                // every range of a bucket may have the best entries, so each is asked for all we still need
+                int need = wanted - ret.size();
+                if (whole) {
+                    for (int i = 0, left = need; i < counts.size() && left > 0; i++) {
+                        long found = 0;
+                        for (Response<Long> count : counts.get(i)) {
+                            found += count.get();
+                        }
+                        checkSortScan(found);
+                        left -= Math.min(found, left);
+                    }
+                }
+                pipe = conn.pipelined();
+                for (int i = 0; i < counts.size() && need > 0; i++) {
+                    List<Range> ranges = buckets.get(i + 1);
+                    List<Response<Set<byte[]>>> bucket = new ArrayList<>(ranges.size());
+                    long found = 0;
+                    for (int r = 0; r < ranges.size(); r++) {
+                        long count = counts.get(i).get(r).get();
+                        found += count;
+                        if (count > 0) {
+                            Range rng = ranges.get(r);
+                            int limit = whole ? (int) count : (int) Math.min(count, need);
+                            bucket.add(reverse ? pipe.zrevrangeByLex(name.getBytes(), rng.to, rng.from, 0, limit) :
+                                    pipe.zrangeByLex(name.getBytes(), rng.from, rng.to, 0, limit));
+                        }
+                    }
+                    responses.add(bucket);
+                    need -= Math.min(found, need);
+                }
+                pipe.sync();
+            }
+        }
+
+        for (List<Response<Set<byte[]>>> bucket : responses) {
+            addBucket(ret, results(bucket), wanted, order, whole);
+            if (wanted >= 0 && ret.size() >= wanted) {
+                break;
+            }
+        }
+        return ret;
+    }
+
+    // queue the scans of a bucket's ranges
+    private List<Response<Set<byte[]>>> rangesOf(Pipeline pipe, List<Range> ranges, int wanted, boolean reverse) {
+        List<Response<Set<byte[]>>> ret = new ArrayList<>(ranges.size());
+        for (Range rng : ranges) {
+            if (reverse) {
+                ret.add(wanted < 0 ? pipe.zrevrangeByLex(name.getBytes(), rng.to, rng.from) :
+                        pipe.zrevrangeByLex(name.getBytes(), rng.to, rng.from, 0, wanted));
+            } else {
+                ret.add(wanted < 0 ? pipe.zrangeByLex(name.getBytes(), rng.from, rng.to) :
+                        pipe.zrangeByLex(name.getBytes(), rng.from, rng.to, 0, wanted));
+            }
+        }
+        return ret;
+    }
+
+    private static List<Set<byte[]>> results(List<Response<Set<byte[]>>> responses) {
+        List<Set<byte[]>> ret = new ArrayList<>(responses.size());
+        for (Response<Set<byte[]>> resp : responses) {
+            ret.add(resp.get());
+        }
+        return ret;
+    }
+
+    // walk the buckets server side in one call, stopping as soon as we have enough entries
+    private List<byte[]> walkScript(List<List<Range>> buckets, int wanted, boolean reverse,
+                                    Comparator<byte[]> order, boolean whole) {
+        List<String> params = new ArrayList<>();
+        params.add(name);
+        params.add(Integer.toString(wanted));
+        params.add(reverse ? "ZREVRANGEBYLEX" : "ZRANGEBYLEX");
+        params.add(Integer.toString(whole ? maxSortScan + 1 : 0));
+        for (List<Range> ranges : buckets) {
+            params.add(Integer.toString(ranges.size()));
+            for (Range rng : ranges) {
+                params.add(new String(reverse ? rng.to : rng.from, StandardCharsets.ISO_8859_1));
+                params.add(new String(reverse ? rng.from : rng.to, StandardCharsets.ISO_8859_1));
+            }
+        }
+
+        Object res;
+        try (Jedis conn = pool.getResource()) {
+            res = walkBuckets.execute(conn, 1, params.toArray(new String[params.size()]));
+        }
+
+        // the script returns the entries of each range of each bucket it has walked, already limited per range,
+        // so they are merged just like the other walks do
+        List<byte[]> ret = new ArrayList<>();
+        for (Object bucket : (List<?>) res) {
+            List<List<byte[]>> results = new ArrayList<>();
+            for (Object range : (List<?>) bucket) {
+                List<byte[]> entries = new ArrayList<>(((List<?>) range).size());
+                for (Object entry : (List<?>) range) {
+                    entries.add(((String) entry).getBytes(StandardCharsets.ISO_8859_1));
+                }
+                results.add(entries);
+            }
+            addBucket(ret, results, wanted, order, whole);
+        }
+        return ret;
+    }
+
+    /**
+     * Delete document-ids from the index, using their reverse records. All ids are deleted in a single pipeline
+     *
+     * @param ids the list of ids to delete
+     */
+    @Override
+    public Boolean delete(String... ids) {
+        try (Jedis conn = pool.getResource()) {
+            Pipeline pipe = conn.pipelined();
+            Long[] internal = idDictionary != null && topK > 0 ? idDictionary.lookup(ids) : null;
+            for (int i = 0; i < ids.length; i++) {
+                String member = internal != null && internal[i] != null ? internal[i].toString() : ids[i];
+                purge(pipe, recordKey(ids[i]), member);
+            }
+            pipe.incr(generationKey());
+            pipe.sync();
+        }
+        bumpGeneration();
+        return true;
+    }
+
+    /**
+     * Drop the index completely
+     */
+    @Override
+    public Boolean drop() {
+        // records are told apart from those of other indexes by their entries, so they go before the entries
+        deleteKeys(recordKey(""), new KeyFilter() {
+            @Override
+            public List<String> filter(Jedis conn, List<String> keys) {
+                return ownRecords(conn, keys);
+            }
+        });
+        // normalized prefixes never contain the separator
+        deleteKeys(topKKey(""), singlePart(topKKey("")));
+        Jedis conn = pool.getResource();
+        Boolean ret = conn.del(name) != 0;
+        conn.del(bucketsKey());
+        conn.del(topKFloorsKey());
+        conn.del(ngramsKey());
+        conn.incr(generationKey());
+        conn.close();
+        bestim = newEstimator(BucketEstimator.DEFAULT_SAMPLE_RATE);
+        bucketsChecked = false;
+        if (ngrams != null) {
+            ngrams.clear();
+        }
+        bumpGeneration();
+        return ret;
+    }
+
+    /**
+     * Document ids may contain the separator, so records are told apart from the records of other indexes by
+     * checking that their first entry is in this index. Records without entries are deleted either way
+     */
+    private List<String> ownRecords(Jedis conn, List<String> keys) {
+        Pipeline pipe = conn.pipelined();
+        List<Response<byte[]>> records = new ArrayList<>(keys.size());
+        for (String key : keys) {
+            records.add(pipe.get(key.getBytes()));
+        }
+        pipe.sync();
+
+        pipe = conn.pipelined();
+        List<Response<Double>> found = new ArrayList<>(keys.size());
+        for (Response<byte[]> rec : records) {
+            List<byte[]> entries = rec.get() == null ? Collections.<byte[]>emptyList() : decodeEntries(rec.get());
+            found.add(entries.isEmpty() ? null : pipe.zscore(name.getBytes(), entries.get(0)));
+        }
+        pipe.sync();
+
+        List<String> ret = new ArrayList<>(keys.size());
+        for (int i = 0; i < keys.size(); i++) {
+            if (records.get(i).get() != null && (found.get(i) == null || found.get(i).get() != null)) {
+                ret.add(keys.get(i));
+            }
+        }
+        return ret;
+    }
+
+    private volatile BucketEstimator bestim = newEstimator(BucketEstimator.DEFAULT_SAMPLE_RATE);
+
+    /**
+     * Create a bucket estimator using the quantiles of the first prefix field in the spec
+     */
+    private BucketEstimator newEstimator(float sampleRate) {
+        double[] quantiles = Spec.PrefixField.DEFAULT_QUANTILES;
+        for (Spec.Field field : spec.fields) {
+            if (field instanceof Spec.PrefixField) {
+                quantiles = ((Spec.PrefixField) field).quantiles;
+                break;
+            }
+        }
+        return new BucketEstimator(sampleRate, BucketEstimator.DEFAULT_BUFFER_SIZE, quantiles);
+    }
+
+    // whether we have already looked for saved bucket boundaries in redis
+    private volatile boolean bucketsChecked = false;
+    // when we last checked for newer boundaries saved by rebucket(), once ours are frozen
+    private volatile long bucketsCheckedAt = 0;
+    // how often writers check for newer boundaries
+    static final long BUCKETS_CHECK_INTERVAL = 1000;
+
+    /**
+     * @return the key holding the saved bucket boundaries of the index
+     */
+    String bucketsKey() {
+        return "b:" + name;
+    }
+
+    /**
+     * Make sure all writers use the same bucket boundaries. Boundaries saved by another writer are loaded and
+     * frozen. Otherwise once we have sampled enough scores we try to save ours, and use whichever got saved first.
+     * Once frozen, we look for a newer version saved by rebucket() at most every BUCKETS_CHECK_INTERVAL ms
+     */
+    private void syncBuckets(Jedis conn) {
+        BucketEstimator est = bestim;
+        if (est.isFrozen()) {
+            long now = System.currentTimeMillis();
+            if (now - bucketsCheckedAt < BUCKETS_CHECK_INTERVAL) {
+                return;
+            }
+            bucketsCheckedAt = now;
+            String saved = conn.get(bucketsKey());
+            if (saved != null && BucketEstimator.version(saved) > est.getVersion()) {
+                est.load(saved);
+            }
+            return;
+        }
+        if (bucketsChecked && !est.isWarm()) {
+            return;
+        }
+        bucketsChecked = true;
+        if (est.isWarm()) {
+            conn.setnx(bucketsKey(), BucketEstimator.serialize(1, est.estimate()));
+        }
+        String saved = conn.get(bucketsKey());
+        if (saved != null && !est.load(saved) && est.isWarm()) {
+            // the saved boundaries are of other quantiles, e.g. of an older spec, so we replace them once
+            float[] bounds = est.estimate();
+            int version = BucketEstimator.version(saved) + 1;
+            conn.set(bucketsKey(), BucketEstimator.serialize(version, bounds));
+            est.freeze(bounds, version);
+        }
+        bucketsCheckedAt = System.currentTimeMillis();
+    }
 
-            for (byte[] entry : entries) {
-                pipe.zadd(name.getBytes(), 0, entry);
+    /**
+     * Reload the bucket boundaries saved in redis, e.g. after another process has called rebucket()
+     */
+    public void reloadBuckets() {
+        try (Jedis conn = pool.getResource()) {
+            String saved = conn.get(bucketsKey());
+            if (saved != null && !bestim.load(saved)) {
+                throw new RuntimeException("Saved bucket boundaries do not match the spec: " + saved);
             }
-
         }
-        pipe.sync();
-        conn.close();
-
-
-        return true;
-
     }
 
     /**
-     * Takes the raw encoded query from the sorted set and extracts id and score by decoding it.
-     * e.g. "world::?\xf0\x00\x00\x00\x00\x00\x00|doc1" --> Entry(id: doc1, score: 1.0)
+     * Recompute the bucket boundaries from the scores currently in the index, save them as a new version, and
+     * move every entry whose bucket has changed. This should be run when the score distribution drifts. Other
+     * processes writing to the index pick up the new version within BUCKETS_CHECK_INTERVAL ms, or right away by
+     * calling reloadBuckets()
      *
-     * @param raw the raw entry in the sorted set
-     * @return a new Entry object
+     * @return the number of entries moved to a new bucket
      */
-    Entry extractEntry(byte[] raw) {
-
+    public long rebucket() {
 
-        int scoreIdx = -1;
-        int idIdx = -1;
-        for (int i = 0; i < raw.length; i++) {
-            if (raw[i] == SEPARATOR && i < raw.length - 1 && raw[i + 1] == SEPARATOR) {
-                scoreIdx = i + 2;
-                break;
+        // we can only find the bucket bytes of prefix fields that are not preceded by other fields
+        boolean prefixOnly = true;
+        for (Spec.Field field : spec.fields) {
+            if (field.type != Spec.IndexingType.Prefix) {
+                prefixOnly = false;
+            } else if (!prefixOnly) {
+                throw new RuntimeException("Cannot rebucket prefix fields indexed after non prefix fields");
             }
         }
-        if (scoreIdx == -1) {
-            throw new RuntimeException("Invalid id entry: " + new String(raw));
-        }
-        for (int i = scoreIdx+4; i < raw.length; i++) {
-            if (raw[i] == SEPARATOR) {
-                idIdx = i + 1;
-                break;
-            }
+
+        byte[] key = name.getBytes();
+        ScanParams params = new ScanParams().count(1000);
+        EntryCursor cursor = cursor();
+
+        // first pass - learn the current score distribution
+        BucketEstimator est = newEstimator(1.0f);
+        boolean empty = true;
+        try (Jedis conn = pool.getResource()) {
+            byte[] scanCursor = ScanParams.SCAN_POINTER_START_BINARY;
+            do {
+                ScanResult<Tuple> res = conn.zscan(key, scanCursor, params);
+                scanCursor = res.getCursorAsBytes();
+                for (Tuple t : res.getResult()) {
+                    est.sample(cursor.reset(t.getBinaryElement()).score());
+                    empty = false;
+                }
+            } while (!Arrays.equals(ScanParams.SCAN_POINTER_START_BINARY, scanCursor));
         }
-        if (idIdx == -1) {
-            throw new RuntimeException("Invalid id entry: " + new String(raw));
+        if (empty) {
+            return 0;
         }
 
+        est.freeze(est.estimate(), bestim.getVersion() + 1);
+        try (Jedis conn = pool.getResource()) {
+            conn.set(bucketsKey(), BucketEstimator.serialize(est.getVersion(), est.estimate()));
+        }
+        bestim = est;
+
+        // second pass - move the entries. entries we have already moved may be scanned again, but are left as is
+        long moved = 0;
+        Set<String> movedDocs = new HashSet<>();
+        try (Jedis conn = pool.getResource()) {
+            byte[] scanCursor = ScanParams.SCAN_POINTER_START_BINARY;
+            do {
+                ScanResult<Tuple> res = conn.zscan(key, scanCursor, params);
+                scanCursor = res.getCursorAsBytes();
+                Pipeline pipe = conn.pipelined();
+                for (Tuple t : res.getResult()) {
+                    byte[] raw = t.getBinaryElement();
+                    byte[] fixed = rebucketEntry(raw, est);
+                    if (fixed != null) {
+                        pipe.zrem(key, raw);
+                        pipe.zadd(key, 0, fixed);
+                        movedDocs.add(externalId(cursor.reset(raw)));
+                        moved++;
+                    }
+                }
+                pipe.sync();
+            } while (!Arrays.equals(ScanParams.SCAN_POINTER_START_BINARY, scanCursor));
+
+            // rewrite the reverse records of the documents we've moved
+            List<String> ids = new ArrayList<>(movedDocs);
+            for (int i = 0; i < ids.size(); i += 1000) {
+                List<String> chunk = ids.subList(i, Math.min(i + 1000, ids.size()));
+                Pipeline pipe = conn.pipelined();
+                List<Response<byte[]>> records = new ArrayList<>(chunk.size());
+                for (String id : chunk) {
+                    records.add(pipe.get(recordKey(id).getBytes()));
+                }
+                pipe.sync();
+
+                pipe = conn.pipelined();
+                for (int n = 0; n < chunk.size(); n++) {
+                    byte[] rec = records.get(n).get();
+                    List<byte[]> entries = rec != null ? decodeEntries(rec) : Collections.<byte[]>emptyList();
+                    if (entries.isEmpty()) {
+                        continue;
+                    }
+                    RecordWriter writer = new RecordWriter(decodeRecord(rec).get(0));
+                    List<byte[]> items = new ArrayList<>(entries.size() + 1);
+                    items.add(writer.header());
+                    for (byte[] entry : entries) {
+                        byte[] fixed = rebucketEntry(entry, est);
+                        items.add(writer.item(fixed != null ? fixed : entry));
+                    }
+                    pipe.set(recordKey(chunk.get(n)).getBytes(), encodeRecord(items));
+                }
+                pipe.sync();
+            }
+            conn.incr(generationKey());
+        }
+        bumpGeneration();
 
-        String id = new String(raw, idIdx, raw.length - idIdx);
-        ByteBuffer bb = ByteBuffer.wrap(raw, scoreIdx, idIdx - scoreIdx - 1);
-
-        double score = Float.intBitsToFloat(bb.getInt());
-
-        return new Entry(id, score);
+        return moved;
+    }
 
+    // the external id of the entry a cursor points at
+    private String externalId(EntryCursor cursor) {
+        if (idDictionary == null) {
+            return cursor.id();
+        }
+        return idDictionary.resolve(cursor.internalId(idDictionary))[0];
     }
 
     /**
-     * Get ids of documents indexed in the index
+     * Rewrite the bucket bytes of an entry according to an estimator
      *
-     * @param q the query to look for
-     * @return a list of string ids
-     * @throws IOException
+     * @return the rewritten entry, or null if the entry is already in the right bucket
      */
-    @Override
-    public List<Index.Entry> get(Query q) throws IOException {
-
-        // extract the ids from the entries
-        List<Entry> ids = new ArrayList<>(q.sort.limit);
-
-        for (byte i =0 ; i < bestim.QUANTILES.length; i++) {
-            // Get the redis ranges to look for
-            Range rng = new Range(q, i);
-            Set<byte[]> entries;
-
-            // get the ids - either with limit or not
-            try (Jedis conn = pool.getResource()) {
-                if (q.sort != null && q.sort.limit != null && q.sort.offset != null) {
-                    entries = conn.zrangeByLex(name.getBytes(), rng.from, rng.to, q.sort.offset, q.sort.limit);
-                } else {
-                    entries = conn.zrangeByLex(name.getBytes(), rng.from, rng.to);
+    private byte[] rebucketEntry(byte[] raw, BucketEstimator est) {
+        EntryCursor cursor = cursor().reset(raw);
+        int trailer = cursor.trailerOffset();
+        byte bucket = est.getBucket(cursor.score());
+        byte[] ret = null;
+        int pos = 0;
+        for (Spec.Field field : spec.fields) {
+            if (field.type != Spec.IndexingType.Prefix) {
+                break;
+            }
+            if (raw[pos] != bucket) {
+                if (ret == null) {
+                    ret = raw.clone();
                 }
+                ret[pos] = bucket;
             }
-            for (byte[] entry : entries) {
-                //String se = new String(entry);
-                ids.add(extractEntry(entry));
+            // skip the bucket and the value. prefix values are normalized and never contain the separator
+            pos++;
+            while (raw[pos] != SEPARATOR) {
+                pos++;
             }
-
-            if (ids.size() >= q.sort.limit) {
+            pos++;
+            // suffix entries only hold the first field
+            if (pos == trailer) {
                 break;
             }
         }
+        return ret;
+    }
 
+    /**
+     * Writes the entries of a document into its reverse record compactly. The record's first item is the trailer
+     * all the document's entries end with, i.e. the score and the id. Every entry is then an item made of a 2 byte
+     * header followed by the bytes of the entry that are not shared with the previous one. The header's low 15 bits
+     * are the length of the shared prefix, and its top bit is set if the entry ends with the trailer, which is
+     * then not written
+     */
+    static final class RecordWriter {
+        private final byte[] trailer;
+        // the previous entry, without its trailer
+        private byte[] prev = new byte[0];
 
+        RecordWriter(byte[] trailer) {
+            this.trailer = trailer;
+        }
 
+        /**
+         * @return the first item of the record
+         */
+        byte[] header() {
+            return trailer;
+        }
 
-        return ids;
-
-    }
+        /**
+         * @return the item of the next entry of the document
+         */
+        byte[] item(byte[] entry) {
+            boolean trailed = entry.length >= trailer.length && endsWith(entry, trailer);
+            int len = trailed ? entry.length - trailer.length : entry.length;
+            int shared = 0;
+            while (shared < len && shared < prev.length && shared < 0x7fff && entry[shared] == prev[shared]) {
+                shared++;
+            }
+            byte[] ret = new byte[2 + len - shared];
+            int header = shared | (trailed ? 0x8000 : 0);
+            ret[0] = (byte) (header >>> 8);
+            ret[1] = (byte) header;
+            System.arraycopy(entry, shared, ret, 2, len - shared);
+            prev = Arrays.copyOf(entry, len);
+            return ret;
+        }
 
-    /**
-     * Delete document-ids from the index
-     *
-     * @param ids the list of ids to delete
-     */
-    @Override
-    public Boolean delete(String... ids) {
-        // @TODO not implemented
-        return false;
+        private static boolean endsWith(byte[] entry, byte[] suffix) {
+            for (int i = 1; i <= suffix.length; i++) {
+                if (entry[entry.length - i] != suffix[suffix.length - i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
     }
 
     /**
-     * Drop the index completely
+     * Decode the entries of a reverse record written with a RecordWriter
      */
-    @Override
-    public Boolean drop() {
-        Jedis conn = pool.getResource();
-        Boolean ret = conn.del(name) != 0;
-        conn.close();
+    static List<byte[]> decodeEntries(byte[] record) {
+        List<byte[]> items = decodeRecord(record);
+        List<byte[]> ret = new ArrayList<>(Math.max(items.size() - 1, 0));
+        byte[] prev = new byte[0];
+        for (int n = 1; n < items.size(); n++) {
+            byte[] item = items.get(n);
+            int header = (item[0] & 0xff) << 8 | (item[1] & 0xff);
+            int shared = header & 0x7fff;
+            byte[] body = Arrays.copyOf(prev, shared + item.length - 2);
+            System.arraycopy(item, 2, body, shared, item.length - 2);
+            prev = body;
+            if ((header & 0x8000) != 0) {
+                byte[] trailer = items.get(0);
+                byte[] entry = Arrays.copyOf(body, body.length + trailer.length);
+                System.arraycopy(trailer, 0, entry, body.length, trailer.length);
+                body = entry;
+            }
+            ret.add(body);
+        }
         return ret;
     }
 
-    private BucketEstimator bestim = new BucketEstimator(BucketEstimator.DEFAULT_SAMPLE_RATE,
-            BucketEstimator.DEFAULT_BUFFER_SIZE);
     /**
      * Encode a document's values into ZSET values to be indexed
      *
@@ -225,65 +1920,247 @@ public class SimpleIndex extends BaseIndex {
      * @throws IOException
      */
     List<byte[]> encode(Document doc) throws IOException {
+        List<byte[]> ret = new ArrayList<>();
+        Iterator<byte[]> it = entries(doc);
+        while (it.hasNext()) {
+            ret.add(it.next());
+        }
+        return ret;
+    }
 
-        List<List<byte[]>> encoded = new ArrayList<>(spec.fields.size());
+    /**
+     * Lazily encode a document's values into ZSET values. Entries are built one at a time, so a document fanning
+     * out into many entries does not need to be materialized in memory
+     *
+     * @param doc the document to encode
+     * @return an iterator over the document's entries, stopping at the per document cap
+     */
+    EntryIterator entries(Document doc) {
+        if (compactSuffixes && (layout != Layout.Compact || idDictionary == null)) {
+            throw new RuntimeException("Compact suffixes require the compact layout and an id dictionary");
+        }
         bestim.sample(doc.getScore());
-        for (Spec.Field field : spec.fields) {
-
-            Object prop = doc.property(field.name);
 
+        byte[] id;
+        IdDictionary dict = idDictionary;
+        if (dict == null) {
+            id = doc.getId().getBytes();
+        } else {
+            id = new byte[dict.getWidth().bytes];
+            dict.write(dict.allocate(doc.getId())[0], id, 0);
+        }
+        return new EntryIterator(doc, id, dict != null, bestim.getBucket(doc.getScore()));
+    }
 
-            Encoder enc = encoders.get(field.name);
-            if (enc == null) {
-                throw new RuntimeException("Missing encoder for " + field.name);
+    /**
+     * Walks the cartesian product of all the field values of a document like an odometer, writing each entry
+     * directly into an array of its exact length
+     */
+    class EntryIterator implements Iterator<byte[]> {
+
+        // per field, either a list of encoded values or a number written in place
+        private final List<List<byte[]>> values;
+        private final Number[] numbers;
+        private final Encoders.Numeric[] numericEncoders;
+        private final boolean[] bucketed;
+        private final boolean[] separated;
+        private final int[] odometer;
+        private final boolean compact;
+
+        private final byte bucket;
+        private final byte[] id;
+        // fixed width ids are written without their length
+        private final boolean fixedId;
+        private final int scoreBits;
+        // the location carried by compact entries, or null
+        private Double[] location;
+        // the suffixes of the first field written as compact suffix entries once all the full entries are done
+        private List<byte[]> suffixes = Collections.emptyList();
+        private int nextSuffix;
+        private boolean fullDone;
+        // everything but the variable length values: separators, buckets, numbers, score and id
+        private int fixedLen;
+        // the length of what follows the values: the score, the id and the location
+        private int trailerLen;
+
+        private boolean done;
+        private int emitted;
+
+        EntryIterator(Document doc, byte[] id, boolean fixedId, byte bucket) {
+            int numFields = spec.fields.size();
+            values = new ArrayList<>(Collections.<List<byte[]>>nCopies(numFields, null));
+            numbers = new Number[numFields];
+            numericEncoders = new Encoders.Numeric[numFields];
+            bucketed = new boolean[numFields];
+            separated = new boolean[numFields];
+            odometer = new int[numFields];
+
+            this.bucket = bucket;
+            this.id = id;
+            this.fixedId = fixedId;
+            scoreBits = Float.floatToIntBits(doc.getScore());
+            compact = layout == Layout.Compact;
+            if (compact) {
+                if (id.length > 0xff) {
+                    throw new RuntimeException("Ids longer than 255 bytes are not supported by the compact layout");
+                }
+                trailerLen = 4 + id.length + (fixedId ? 0 : 2);
+            } else {
+                trailerLen = 1 + 4 + 1 + id.length;
             }
 
-            List<byte[]> bytes;
-            if (field.type == Spec.IndexingType.Prefix) {
-                List<byte[]> tmpBytes = enc.encode(Objects.requireNonNull(prop));
-                bytes = new ArrayList<>(tmpBytes.size());
+            for (int i = 0; i < numFields; i++) {
+                Spec.Field field = spec.fields.get(i);
+                Object prop = Objects.requireNonNull(doc.property(field.name));
 
+                Encoder<?> enc = encoders.get(field.name);
+                if (enc == null) {
+                    throw new RuntimeException("Missing encoder for " + field.name);
+                }
 
-                for (byte[] entry : tmpBytes) {
-                    byte[] pentry = new byte[entry.length + 1];
-                    pentry[0] = bestim.getBucket(doc.getScore());
-                    System.arraycopy(entry, 0, pentry, 1, entry.length);
-                    bytes.add(pentry);
+                if (enc instanceof Encoders.Numeric && prop instanceof Number) {
+                    numbers[i] = (Number) prop;
+                    numericEncoders[i] = (Encoders.Numeric) enc;
+                    fixedLen += numericEncoders[i].width(numbers[i]);
+                } else {
+                    values.set(i, encodeValue(enc, prop));
+                    if (values.get(i).isEmpty()) {
+                        done = true;
+                    }
+                }
+
+                bucketed[i] = field.type == Spec.IndexingType.Prefix;
+                separated[i] = separated(field.type);
+                fixedLen += (bucketed[i] ? 1 : 0) + (separated[i] ? 1 : 0);
+
+                if (compact && location == null && field.type == Spec.IndexingType.Geo && prop instanceof Double[]) {
+                    location = (Double[]) prop;
                 }
-            } else {
-                bytes = enc.encode(Objects.requireNonNull(prop));
             }
+            trailerLen += location != null ? 8 : 0;
+            fixedLen += trailerLen;
 
-            encoded.add(bytes);
+            if (compactSuffixes && values.get(0) != null && values.get(0).size() > 1) {
+                // the first value is the whole normalized value, followed by its suffixes
+                suffixes = values.get(0).subList(1, values.get(0).size());
+                values.set(0, values.get(0).subList(0, 1));
+            }
+        }
 
+        @Override
+        public boolean hasNext() {
+            if (!done && maxEntriesPerDocument > 0 && emitted >= maxEntriesPerDocument) {
+                done = true;
+                truncatedDocuments.incrementAndGet();
+            }
+            return !done;
         }
 
-        // now merge everything
+        @Override
+        public byte[] next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            if (fullDone) {
+                return nextSuffix();
+            }
 
-        List<List<byte[]>> product = cartesianProduct(encoded);
-        List<byte[]> ret = new ArrayList<>(product.size());
+            int len = fixedLen;
+            for (int i = 0; i < odometer.length; i++) {
+                if (values.get(i) != null) {
+                    len += values.get(i).get(odometer[i]).length;
+                }
+            }
 
-        for (List<byte[]> lst : product) {
-            ByteArrayOutputStream buf = new ByteArrayOutputStream();
-            for (byte[] bs : lst) {
-                buf.write(bs);
-                buf.write(SEPARATOR);
+            byte[] entry = new byte[len];
+            int off = 0;
+            for (int i = 0; i < odometer.length; i++) {
+                if (bucketed[i]) {
+                    entry[off++] = bucket;
+                }
+                if (values.get(i) == null) {
+                    off = numericEncoders[i].write(numbers[i], entry, off);
+                } else {
+                    byte[] val = values.get(i).get(odometer[i]);
+                    System.arraycopy(val, 0, entry, off, val.length);
+                    off += val.length;
+                }
+                if (separated[i]) {
+                    entry[off++] = SEPARATOR;
+                }
             }
-            // append the getId to the entry
-            buf.write(SEPARATOR);
+            writeTrailer(entry, off);
 
-            List<byte[]> sce = scoreEncoder.encode((Number)doc.getScore());
-            buf.write(sce.get(0));
-            buf.write(SEPARATOR);
-            buf.write(doc.getId().getBytes());
+            emitted++;
+            advance();
+            return entry;
+        }
 
+        /**
+         * @return what all the full entries of the document end with
+         */
+        byte[] trailer() {
+            byte[] ret = new byte[trailerLen];
+            writeTrailer(ret, 0);
+            return ret;
+        }
 
-            ret.add(buf.toByteArray());
+        // append the score and id to the entry
+        private void writeTrailer(byte[] entry, int off) {
+            if (compact) {
+                off = Encoders.Numeric.writeInt(scoreBits, entry, off);
+                System.arraycopy(id, 0, entry, off, id.length);
+                off += id.length;
+                if (!fixedId) {
+                    entry[off++] = (byte) id.length;
+                }
+                if (location != null) {
+                    off = Encoders.Geohash.writeDegrees(location[0], entry, off);
+                    off = Encoders.Geohash.writeDegrees(location[1], entry, off);
+                }
+                if (!fixedId) {
+                    entry[off] = location != null ? COMPACT_GEO_V1 : COMPACT_V1;
+                }
+            } else {
+                entry[off++] = SEPARATOR;
+                off = Encoders.Numeric.writeInt(scoreBits, entry, off);
+                entry[off++] = SEPARATOR;
+                System.arraycopy(id, 0, entry, off, id.length);
+            }
         }
 
+        // advance the odometer, rightmost field first
+        private void advance() {
+            for (int i = odometer.length - 1; i >= 0; i--) {
+                if (values.get(i) != null && ++odometer[i] < values.get(i).size()) {
+                    return;
+                }
+                odometer[i] = 0;
+            }
+            fullDone = true;
+            done = suffixes.isEmpty();
+        }
 
-        return ret;
+        // [bucket]suffix: followed by the same trailer as full entries
+        private byte[] nextSuffix() {
+            byte[] val = suffixes.get(nextSuffix++);
+            byte[] entry = new byte[1 + val.length + 1 + trailerLen];
+            int off = 0;
+            entry[off++] = bucket;
+            System.arraycopy(val, 0, entry, off, val.length);
+            off += val.length;
+            entry[off++] = SEPARATOR;
+            writeTrailer(entry, off);
+
+            emitted++;
+            done = nextSuffix >= suffixes.size();
+            return entry;
+        }
 
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
     }
 
     /**
@@ -291,13 +2168,31 @@ public class SimpleIndex extends BaseIndex {
      * We use it to divide prefix indexes to "score buckets", and try the best buckets first.
      * This is an approximation designed to overcome the natural problem with ZLEX ranges that
      * cannot be used with scores.
+     *
+     * The estimator is safe to use from multiple threads. Once warm, samples arriving while another thread is
+     * inserting are dropped rather than waited for, and buckets are computed from boundaries cached every few
+     * hundred samples, so writers neither block nor allocate per document. Once its boundaries are frozen (usually
+     * by loading them from redis) they are used as is and no more sampling is done, so all writers agree on the
+     * buckets.
      */
     static class BucketEstimator {
+        // guarded by lock, the estimator is not thread safe
         private Estimator<Float> estimator;
+        private final ReentrantLock lock = new ReentrantLock();
         private Quantile[] quantiles;
         private float sampleRate;
         private int bufferSize;
-        private int numSamples;
+        // the number of samples inserted into the estimator
+        private final AtomicLong numSamples = new AtomicLong();
+
+        // frozen boundaries, one per quantile, or null while we are still learning them
+        private volatile float[] boundaries;
+        private volatile int version;
+        // the boundaries last estimated from the samples, or null before the first sample
+        private volatile float[] estimated;
+
+        // the estimated boundaries are refreshed for each of the first samples, then every this many samples
+        private static final int REFRESH_INTERVAL = 256;
 
         //this is the streaming quantile estimator's buffer capacity
         public static final int DEFAULT_BUFFER_SIZE = 4096;
@@ -306,38 +2201,162 @@ public class SimpleIndex extends BaseIndex {
         public static final float DEFAULT_SAMPLE_RATE = 0.05f;
 
         public BucketEstimator(float sampleRate, int bufferSize) {
+            this(sampleRate, bufferSize, Spec.PrefixField.DEFAULT_QUANTILES);
+        }
+
+        /**
+         * @param quantiles the quantiles dividing the buckets, in descending order
+         */
+        public BucketEstimator(float sampleRate, int bufferSize, double[] quantiles) {
             this.sampleRate = sampleRate;
             this.bufferSize =  bufferSize;
-            this.numSamples = 0;
-
-            quantiles = new Quantile[] {
-                    new Quantile(0.50, 0.050),
-                    new Quantile(0.90, 0.01),
-                    new Quantile(0.95, 0.01),
-                    new Quantile(0.99, 0.01)};
+            this.bucketQuantiles = quantiles;
+
+            // the error is a tenth of the distance from the top, but not finer than 0.01 unless the quantile is
+            // closer than that to the top, so the top buckets of log-spaced quantiles do not blur together
+            this.quantiles = new Quantile[quantiles.length];
+            for (int i = 0; i < quantiles.length; i++) {
+                double error = Math.max((1 - quantiles[i]) / 10, Math.min(0.01, 1 - quantiles[i]));
+                this.quantiles[i] = new Quantile(quantiles[i], error);
+            }
 
-             estimator= new Estimator<>(bufferSize, quantiles);
+             estimator= new Estimator<>(bufferSize, this.quantiles);
 
         }
 
         public void sample(float score) {
-            if (numSamples++ <= bufferSize || Math.random() <= sampleRate) {
+            if (boundaries != null) {
+                return;
+            }
+            if (numSamples.get() < bufferSize) {
+                // every sample counts until we are warm
+                lock.lock();
+            } else if (ThreadLocalRandom.current().nextFloat() > sampleRate || !lock.tryLock()) {
+                return;
+            }
+            try {
                 estimator.insert(score);
+                long n = numSamples.incrementAndGet();
+                if (n <= 64 || n == bufferSize || n % REFRESH_INTERVAL == 0) {
+                    estimated = estimate();
+                }
+            } finally {
+                lock.unlock();
             }
         }
 
-        private final double[] QUANTILES = {0.99, 0.95, 0.90, 0.5};
+        // the quantiles dividing the buckets, best first
+        private final double[] bucketQuantiles;
+
+        /**
+         * @return the number of buckets, including the bottom bucket
+         */
+        public int numBuckets() {
+            return bucketQuantiles.length + 1;
+        }
+
         public byte getBucket(float score) {
 
+            float[] bounds = boundaries;
+            if (bounds == null) {
+                bounds = estimated;
+                if (bounds == null) {
+                    return 0;
+                }
+            }
             byte b = 0;
-            for (double q : QUANTILES) {
-                if (score >= estimator.query(q)) {
+            for (float bound : bounds) {
+                if (score >= bound) {
                     return b;
                 }
                 b++;
             }
             return b;
         }
+
+        /**
+         * @return the current boundaries estimated from the samples, one per quantile
+         */
+        float[] estimate() {
+            lock.lock();
+            try {
+                float[] ret = new float[bucketQuantiles.length];
+                for (int i = 0; i < bucketQuantiles.length; i++) {
+                    ret[i] = estimator.query(bucketQuantiles[i]);
+                }
+                return ret;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Freeze the boundaries of the buckets, from now on they will not change
+         */
+        void freeze(float[] boundaries, int version) {
+            if (boundaries.length != bucketQuantiles.length) {
+                throw new RuntimeException("Expected " + bucketQuantiles.length + " bucket boundaries, got " +
+                        boundaries.length);
+            }
+            this.version = version;
+            this.boundaries = boundaries;
+        }
+
+        boolean isFrozen() {
+            return boundaries != null;
+        }
+
+        /**
+         * @return true if we have sampled enough scores to trust the estimated boundaries
+         */
+        boolean isWarm() {
+            return numSamples.get() >= bufferSize;
+        }
+
+        int getVersion() {
+            return version;
+        }
+
+        /**
+         * Serialize boundaries for storage, as "version:b1,b2,..."
+         */
+        static String serialize(int version, float[] boundaries) {
+            StringBuilder sb = new StringBuilder().append(version).append(':');
+            for (int i = 0; i < boundaries.length; i++) {
+                if (i > 0) {
+                    sb.append(',');
+                }
+                sb.append(boundaries[i]);
+            }
+            return sb.toString();
+        }
+
+        /**
+         * @return the version of boundaries serialized with serialize()
+         */
+        static int version(String serialized) {
+            return Integer.parseInt(serialized.substring(0, serialized.indexOf(':')));
+        }
+
+        /**
+         * Parse boundaries serialized with serialize() and freeze them
+         *
+         * @return false if the boundaries were not loaded, as their number does not match our quantiles, e.g.
+         * because they were saved for a different spec
+         */
+        boolean load(String serialized) {
+            int idx = serialized.indexOf(':');
+            String[] parts = serialized.substring(idx + 1).split(",");
+            if (parts.length != bucketQuantiles.length) {
+                return false;
+            }
+            float[] bounds = new float[parts.length];
+            for (int i = 0; i < parts.length; i++) {
+                bounds[i] = Float.parseFloat(parts[i]);
+            }
+            freeze(bounds, version(serialized));
+            return true;
+        }
     }
 
 
@@ -356,6 +2375,10 @@ public class SimpleIndex extends BaseIndex {
         byte[] from;
         byte[] to;
         private byte scoreBucket;
+        // the range's upper bound is already exact, and must not be padded with 0xff
+        private boolean closed;
+        // the range has no upper bound at all
+        private boolean unbounded;
 
 
         public Range(Query q, byte scoreBucket) throws IOException, RuntimeException {
@@ -374,8 +2397,8 @@ public class SimpleIndex extends BaseIndex {
                 if (!cont) {
                     break;
                 }
-                Query.Filter flt = null;
-                for (Query.Filter f : q.filters) {
+                Query.Filter<?> flt = null;
+                for (Query.Filter<?> f : q.filters) {
                     if (f.property.equals(field.name)) {
                         flt = f;
                         break;
@@ -386,11 +2409,18 @@ public class SimpleIndex extends BaseIndex {
                     break;
                 }
 
-                Encoder enc = encoders.get(field.name);
+                Encoder<?> enc = encoders.get(field.name);
                 if (enc == null) {
                     throw new RuntimeException("No encoder for field type " + field.name);
                 }
 
+                if (field.type == Spec.IndexingType.Numeric && flt.op != Query.Op.Equals) {
+                    // numeric comparisons get a tight range that is always [from, to)
+                    encodeNumericRange(frbuf, tobuf, flt, enc);
+                    cont = false;
+                    continue;
+                }
+
                 switch (flt.op) {
                     case Equals:
                         encodeEqualRange(frbuf, tobuf, flt, enc, field.type);
@@ -405,7 +2435,8 @@ public class SimpleIndex extends BaseIndex {
                         cont = false;
                         break;
                     case Near:
-                        encodeNearRange(frbuf, tobuf, flt, enc);
+                        // a coarser cell is a prefix of the values in it, so nothing can follow it
+                        cont = encodeNearRange(frbuf, tobuf, flt, enc);
                         break;
                     // TODO - implement those...
                     case Greater:
@@ -436,36 +2467,172 @@ public class SimpleIndex extends BaseIndex {
 
 
             }
-            tobuf.write(255);
+            if (!closed) {
+                tobuf.write(255);
+            }
 
             from = frbuf.toByteArray();
             to = tobuf.toByteArray();
 
+            if (closed) {
+                lowerInclusive = true;
+                upperInclusive = false;
+            }
             from[0] = (byte) (lowerInclusive ? '[' : '(');
             to[0] = (byte) (upperInclusive ? '[' : '(');
+            if (unbounded) {
+                to = new byte[]{'+'};
+            }
 
         }
 
+        /**
+         * Encode a tight range for a numeric comparison, that needs no trailing 0xff. Numeric encodings preserve
+         * order and no encoded value is a prefix of another, so the key right after a value in either layout
+         * sorts after all the entries with that value
+         *
+         * @param frbuf the "from" range byte buffer
+         * @param tobuf the "to" range byte buffer, holding the same prefix as frbuf
+         * @param flt the filter we are encoding
+         * @param enc the numeric encoder of the field
+         * @throws IOException
+         */
+        private void encodeNumericRange(ByteArrayOutputStream frbuf, ByteArrayOutputStream tobuf,
+                                        Query.Filter<?> flt, Encoder<?> enc) throws IOException {
+            byte[] lower = null;
+            byte[] upper = null;
+            boolean lowerInclusive = true;
+            boolean upperInclusive = true;
+            switch (flt.op) {
+                case Between:
+                    if (flt.values.length != 2) {
+                        throw new RuntimeException("Exactly two value allowed for BETWEEN filter");
+                    }
+                    lower = encodeValue(enc, flt.values[0]).get(0);
+                    upper = encodeValue(enc, flt.values[1]).get(0);
+                    break;
+                case Greater:
+                case GreaterEquals:
+                case Less:
+                case LessEqual:
+                    if (flt.values.length != 1) {
+                        throw new RuntimeException("Exactly one value allowed for " + flt.op + " filter");
+                    }
+                    byte[] val = encodeValue(enc, flt.values[0]).get(0);
+                    if (flt.op == Query.Op.Greater || flt.op == Query.Op.GreaterEquals) {
+                        lower = val;
+                        lowerInclusive = flt.op == Query.Op.GreaterEquals;
+                    } else {
+                        upper = val;
+                        upperInclusive = flt.op == Query.Op.LessEqual;
+                    }
+                    break;
+                default:
+                    throw new RuntimeException("No way to encode numeric range for filter op " + flt.op.toString());
+            }
 
-        private void encodeNearRange(ByteArrayOutputStream frbuf, ByteArrayOutputStream tobuf, Query.Filter flt, Encoder enc) throws IOException {
-            List<byte[]> encoded;
-            if (flt.values.length != 2 || !(flt.values instanceof Double[])) {
+            if (lower != null) {
+                if (lowerInclusive) {
+                    frbuf.write(lower);
+                    separate(frbuf, Spec.IndexingType.Numeric);
+                } else {
+                    frbuf.write(after(lower));
+                }
+            }
+            if (upper != null) {
+                if (upperInclusive) {
+                    tobuf.write(after(upper));
+                } else {
+                    tobuf.write(upper);
+                    separate(tobuf, Spec.IndexingType.Numeric);
+                }
+            } else {
+                // everything starting with the prefix, i.e. up to the prefix's successor
+                byte[] prefix = tobuf.toByteArray();
+                int len = prefix.length;
+                while (len > 1 && prefix[len - 1] == (byte) 0xff) {
+                    len--;
+                }
+                if (len == 1) {
+                    unbounded = true;
+                } else {
+                    prefix[len - 1]++;
+                    tobuf.reset();
+                    tobuf.write(prefix, 0, len);
+                }
+            }
+            closed = true;
+        }
+
+        /**
+         * @return the lowest key sorting after every entry with this numeric value, but before all greater values
+         */
+        private byte[] after(byte[] value) {
+            if (separated(Spec.IndexingType.Numeric)) {
+                // "value;" sorts right after "value:..."
+                byte[] ret = Arrays.copyOf(value, value.length + 1);
+                ret[value.length] = SEPARATOR + 1;
+                return ret;
+            }
+            // without a separator we need the value's successor
+            int len = value.length;
+            while (len > 0 && value[len - 1] == (byte) 0xff) {
+                len--;
+            }
+            if (len == 0) {
+                // the maximal value has no successor, settle for padding it like other ranges do
+                byte[] ret = Arrays.copyOf(value, value.length + 1);
+                ret[value.length] = (byte) 0xff;
+                return ret;
+            }
+            byte[] ret = Arrays.copyOf(value, len);
+            ret[len - 1]++;
+            return ret;
+        }
+
+        /**
+         * Write a separator after a value in a range, if the current layout has one after fields of this type
+         */
+        private void separate(ByteArrayOutputStream buf, Spec.IndexingType type) {
+            if (separated(type)) {
+                buf.write(SEPARATOR);
+            }
+        }
+
+
+        /**
+         * Encode the range of a cell. NEAR filters of queries take the cell of a point at the index's precision,
+         * and the expansion of RADIUS filters may add the cell's precision as a third value
+         *
+         * @return true if the cell is at the index's precision, and the range may go on to the next field
+         */
+        private boolean encodeNearRange(ByteArrayOutputStream frbuf, ByteArrayOutputStream tobuf, Query.Filter<?> flt, Encoder<?> enc) throws IOException {
+            if (flt.values.length < 2 || flt.values.length > 3 || !(flt.values instanceof Double[])) {
                 throw new RuntimeException("Near filter accepts two doubles only!");
             }
-            encoded = enc.encode(flt.values);
+            int precision = ((Encoders.Geohash) enc).getPrecision();
+            if (flt.values.length == 3 && ((Double) flt.values[2]).intValue() < precision) {
+                byte[] cell = GeoHash.withCharacterPrecision((Double) flt.values[0], (Double) flt.values[1],
+                        ((Double) flt.values[2]).intValue()).toBase32().getBytes();
+                frbuf.write(cell);
+                tobuf.write(cell);
+                return false;
+            }
+            List<byte[]> encoded = encodeValue(enc, new Double[]{(Double) flt.values[0], (Double) flt.values[1]});
             tobuf.write(encoded.get(0));
-            tobuf.write(SEPARATOR);
+            separate(tobuf, Spec.IndexingType.Geo);
             frbuf.write(encoded.get(0));
-            frbuf.write(SEPARATOR);
+            separate(frbuf, Spec.IndexingType.Geo);
+            return true;
         }
 
         private void encodePrefixRange(ByteArrayOutputStream frbuf, ByteArrayOutputStream tobuf,
-                                       Query.Filter flt, Encoder enc) throws IOException {
+                                       Query.Filter<?> flt, Encoder<?> enc) throws IOException {
 
             if (flt.values.length != 1) {
                 throw new RuntimeException("Only one value allowed for PREFIX filter");
             }
-            byte[] encoded = (byte[]) enc.encode(flt.values[0]).get(0);
+            byte[] encoded = encodeValue(enc, flt.values[0]).get(0);
 
 
             frbuf.write(scoreBucket);
@@ -475,42 +2642,42 @@ public class SimpleIndex extends BaseIndex {
             tobuf.write(encoded);
         }
 
-        private void encodeBetweenRange(ByteArrayOutputStream frbuf, ByteArrayOutputStream tobuf, Query.Filter flt, Encoder enc, Spec.IndexingType type) throws IOException {
+        private void encodeBetweenRange(ByteArrayOutputStream frbuf, ByteArrayOutputStream tobuf, Query.Filter<?> flt, Encoder<?> enc, Spec.IndexingType type) throws IOException {
             List<byte[]> encoded;
             if (flt.values.length != 2) {
                 throw new RuntimeException("Exactly two value allowed for BETWEEN filter");
             }
-            encoded = enc.encode(flt.values[0]);
+            encoded = encodeValue(enc, flt.values[0]);
 
             if (type == Spec.IndexingType.Prefix) {
                 frbuf.write(scoreBucket);
             }
             frbuf.write(encoded.get(0));
-            frbuf.write(SEPARATOR);
-            encoded = enc.encode(flt.values[1]);
+            separate(frbuf, type);
+            encoded = encodeValue(enc, flt.values[1]);
             if (type == Spec.IndexingType.Prefix) {
                 tobuf.write(scoreBucket);
             }
             tobuf.write(encoded.get(0));
-            tobuf.write(SEPARATOR);
+            separate(tobuf, type);
         }
 
-        private void encodeEqualRange(ByteArrayOutputStream frbuf, ByteArrayOutputStream tobuf, Query.Filter flt, Encoder enc, Spec.IndexingType type) throws IOException {
+        private void encodeEqualRange(ByteArrayOutputStream frbuf, ByteArrayOutputStream tobuf, Query.Filter<?> flt, Encoder<?> enc, Spec.IndexingType type) throws IOException {
             List<byte[]> encoded;
             if (flt.values.length != 1) {
                 throw new RuntimeException("Only one value allowed for EQ filter");
             }
-            encoded = enc.encode(flt.values[0]);
+            encoded = encodeValue(enc, flt.values[0]);
             if (type == Spec.IndexingType.Prefix) {
                 tobuf.write(scoreBucket);
             }
             tobuf.write(encoded.get(0));
-            tobuf.write(SEPARATOR);
+            separate(tobuf, type);
             if (type == Spec.IndexingType.Prefix) {
                 frbuf.write(scoreBucket);
             }
             frbuf.write(encoded.get(0));
-            frbuf.write(SEPARATOR);
+            separate(frbuf, type);
         }
 
 
@@ -524,21 +2691,20 @@ public class SimpleIndex extends BaseIndex {
          * @param type
          * @throws IOException
          */
-        private void encodeGreaterRange(ByteArrayOutputStream frbuf, ByteArrayOutputStream tobuf, Query.Filter flt, Encoder enc, Spec.IndexingType type) throws IOException {
+        private void encodeGreaterRange(ByteArrayOutputStream frbuf, ByteArrayOutputStream tobuf, Query.Filter<?> flt, Encoder<?> enc, Spec.IndexingType type) throws IOException {
             List<byte[]> encoded;
             if (flt.values.length != 1) {
                 throw new RuntimeException("Exactly one value allowed for GT filter");
             }
 
-            encoded = enc.encode(flt.values[0]);
+            encoded = encodeValue(enc, flt.values[0]);
             byte[] bs = encoded.get(0);
             if (type == Spec.IndexingType.Prefix) {
                 frbuf.write(scoreBucket);
             }
             frbuf.write(bs);
-            frbuf.write(SEPARATOR);
-            // write 0xff * the size of the encoded value
-            // TODO - do it properly for numeric types
+            separate(frbuf, type);
+            // write 0xff * the size of the encoded value. numeric fields use encodeNumericRange instead
             for (int n = 0; n < bs.length; n++) {
                 bs[n] = (byte) 0xff;
             }
@@ -546,22 +2712,22 @@ public class SimpleIndex extends BaseIndex {
                 tobuf.write(scoreBucket);
             }
             tobuf.write(bs);
-            tobuf.write(SEPARATOR);
+            separate(tobuf, type);
         }
 
-        private void encodeLessRange(ByteArrayOutputStream frbuf, ByteArrayOutputStream tobuf, Query.Filter flt, Encoder enc, Spec.IndexingType type) throws IOException {
+        private void encodeLessRange(ByteArrayOutputStream frbuf, ByteArrayOutputStream tobuf, Query.Filter<?> flt, Encoder<?> enc, Spec.IndexingType type) throws IOException {
             List<byte[]> encoded;
             if (flt.values.length != 1) {
                 throw new RuntimeException("Exactly one value allowed for GT filter");
             }
-            encoded = enc.encode(flt.values[0]);
+            encoded = encodeValue(enc, flt.values[0]);
             byte[] bs = encoded.get(0);
 
             if (type == Spec.IndexingType.Prefix) {
                 tobuf.write(scoreBucket);
             }
             tobuf.write(bs);
-            tobuf.write(SEPARATOR);
+            separate(tobuf, type);
 
 
             // write 0x00 * the size of the encoded value
@@ -572,39 +2738,8 @@ public class SimpleIndex extends BaseIndex {
                 frbuf.write(scoreBucket);
             }
             frbuf.write(bs);
-            frbuf.write(SEPARATOR);
-        }
-
-    }
-
-
-    // TODO - move this to some util
-    public static <T> List<List<T>> cartesianProduct(List<List<T>> sets) {
-        List<List<T>> ret = new ArrayList<>();
-
-        for (List<T> set : sets) {
-            if (ret.isEmpty()) {
-                for (T t : set) {
-                    List<T> tuple = new ArrayList<>();
-                    tuple.add(t);
-                    ret.add(tuple);
-                }
-            } else {
-                List<List<T>> tmp = new ArrayList<>();
-
-                for (List<T> subList : ret) {
-                    for (T t : set) {
-                        List<T> lst = new ArrayList<>();
-                        lst.addAll(subList);
-                        lst.add(t);
-                        tmp.add(lst);
-                    }
-                }
-
-                ret = tmp;
-            }
+            separate(frbuf, type);
         }
 
-        return ret;
     }
 }
@@ -0,0 +1,54 @@
+package com.redislabs.research;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for AdaptiveChunkSize convergence and limits
+ */
+public class AdaptiveChunkSizeTest extends TestCase {
+
+    public void testLatencyBudget() {
+
+        AdaptiveChunkSize cs = new AdaptiveChunkSize(100, 10, 1000, 10, 0);
+        assertEquals(100, cs.getChunkSize());
+
+        // 100 docs took 5ms - we can grow
+        cs.record(100, 1000, 5000000);
+        assertTrue(cs.getChunkSize() > 100);
+        assertEquals(5.0, cs.getLastLatencyMillis(), 0.001);
+        assertEquals(20000, cs.getDocsPerSecond(), 0.1);
+
+        // way too slow - we should shrink, but not below the minimum
+        for (int i = 0; i < 20; i++) {
+            cs.record(cs.getChunkSize(), 1000, 1000000000);
+        }
+        assertEquals(10, cs.getChunkSize());
+
+        // way too fast - we should grow, but not above the maximum
+        for (int i = 0; i < 20; i++) {
+            cs.record(cs.getChunkSize(), 1000, 1000);
+        }
+        assertEquals(1000, cs.getChunkSize());
+    }
+
+    public void testByteBudget() {
+
+        AdaptiveChunkSize cs = new AdaptiveChunkSize(100, 1, 10000, 0, 10000);
+
+        // each doc is 1000 bytes, so we should converge on 10 docs per chunk
+        for (int i = 0; i < 50; i++) {
+            cs.record(cs.getChunkSize(), cs.getChunkSize() * 1000, 1000000);
+        }
+        assertEquals(10, cs.getChunkSize());
+        assertTrue(cs.getTotalDocs() > 0);
+        assertEquals(cs.getTotalDocs() * 1000, cs.getTotalBytes());
+    }
+
+    public void testInvalid() {
+        try {
+            new AdaptiveChunkSize(100, 10, 1000, 0, 0);
+            fail();
+        } catch (IllegalArgumentException e) {
+        }
+    }
+}
@@ -7,6 +7,8 @@ import junit.framework.TestCase;
 import java.io.EOFException;
 import java.io.IOException;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  * Created by dvirsky on 24/03/16.
@@ -65,6 +67,23 @@ public class EngineTest extends TestCase {
 
     }
 
+    public void testParallelIndexing() {
+
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        engine.setExecutor(executor);
+        try {
+            engine.put(documents);
+            assertAllDocsFound();
+        } catch (IOException e) {
+            e.printStackTrace();
+            fail();
+        } finally {
+            engine.dropIndex("myidx");
+            executor.shutdown();
+        }
+
+    }
+
 
     class DocStream implements  DocumentStream {
 
@@ -101,6 +120,22 @@ public class EngineTest extends TestCase {
 
     }
 
+    public void testPipelinedDocumentStream() {
 
+        DocStream ds = new DocStream();
+        engine.setStreamConcurrency(2, 2);
+
+        try {
+            engine.put(ds, 1);
+            assertEquals(3, ds.i);
+            assertAllDocsFound();
+        } catch (IOException e) {
+            e.printStackTrace();
+            fail();
+        } finally {
+            engine.dropIndex("myidx");
+        }
+
+    }
 
 }
\ No newline at end of file
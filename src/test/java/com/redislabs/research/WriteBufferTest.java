@@ -0,0 +1,153 @@
+package com.redislabs.research;
+
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests coalescing small writes with WriteBuffer, using an in memory index and store
+ */
+public class WriteBufferTest extends TestCase {
+
+    static class CountingIndex implements Index {
+
+        AtomicInteger calls = new AtomicInteger();
+        AtomicInteger docs = new AtomicInteger();
+        volatile boolean failing = false;
+
+        @Override
+        public Boolean index(Document... ds) throws IOException {
+            if (failing) {
+                throw new IOException("failing on purpose");
+            }
+            calls.incrementAndGet();
+            docs.addAndGet(ds.length);
+            return true;
+        }
+
+        @Override
+        public List<Entry> get(Query q) {
+            return null;
+        }
+
+        @Override
+        public Boolean delete(String... ids) {
+            return false;
+        }
+
+        @Override
+        public Boolean drop() {
+            return false;
+        }
+
+        @Override
+        public String id() {
+            return "counting";
+        }
+    }
+
+    static class CountingStore implements DocumentStore {
+
+        AtomicInteger docs = new AtomicInteger();
+
+        @Override
+        public void store(Document... ds) {
+            docs.addAndGet(ds.length);
+        }
+
+        @Override
+        public List<Document> load(List<String> ids) {
+            return null;
+        }
+
+        @Override
+        public int delete(String... ids) {
+            return 0;
+        }
+    }
+
+    public void testCoalescing() throws Exception {
+
+        final CountingIndex idx = new CountingIndex();
+        CountingStore store = new CountingStore();
+        final WriteBuffer buf = new WriteBuffer(new Engine(store, idx), 100, 50);
+
+        ExecutorService pool = Executors.newFixedThreadPool(16);
+        List<Future<Future<Void>>> writes = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            final Document doc = new Document("doc" + i);
+            final boolean doStore = i % 2 == 0;
+            writes.add(pool.submit(new Callable<Future<Void>>() {
+                @Override
+                public Future<Void> call() throws Exception {
+                    return doStore ? buf.put(doc) : buf.index(doc);
+                }
+            }));
+        }
+        for (Future<Future<Void>> f : writes) {
+            f.get().get(5, TimeUnit.SECONDS);
+        }
+        pool.shutdown();
+
+        assertEquals(1000, idx.docs.get());
+        assertEquals(500, store.docs.get());
+        // we should have had far fewer index calls than writes
+        assertTrue(idx.calls.get() < 200);
+
+        // a single small write is flushed after the delay
+        long st = System.currentTimeMillis();
+        buf.put(new Document("last")).get(5, TimeUnit.SECONDS);
+        assertTrue(System.currentTimeMillis() - st >= 40);
+
+        // failures are reported to the callers in the failing batch
+        idx.failing = true;
+        try {
+            buf.index(new Document("fail")).get(5, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IOException);
+        }
+
+        buf.close();
+        try {
+            buf.index(new Document("closed"));
+            fail();
+        } catch (IllegalStateException e) {
+        }
+    }
+
+    public void testOrdering() throws Exception {
+
+        // remembers the last version of every document it was given
+        final ConcurrentHashMap<String, Object> indexed = new ConcurrentHashMap<>();
+        CountingIndex idx = new CountingIndex() {
+            @Override
+            public Boolean index(Document... ds) throws IOException {
+                for (Document d : ds) {
+                    indexed.put(d.getId(), d.property("v"));
+                }
+                return super.index(ds);
+            }
+        };
+        WriteBuffer buf = new WriteBuffer(new Engine(new CountingStore(), idx), 10, 20, 4, 1000);
+
+        // index() and put() writes of the same documents alternate, across batches and flushers
+        List<Future<Void>> writes = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            Document doc = new Document("doc" + i % 3).set("v", i);
+            writes.add(i % 2 == 0 ? buf.index(doc) : buf.put(doc));
+        }
+        for (Future<Void> f : writes) {
+            f.get(5, TimeUnit.SECONDS);
+        }
+        buf.close();
+
+        assertEquals(198, indexed.get("doc0"));
+        assertEquals(199, indexed.get("doc1"));
+        assertEquals(197, indexed.get("doc2"));
+    }
+}
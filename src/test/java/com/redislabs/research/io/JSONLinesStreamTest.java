@@ -0,0 +1,86 @@
+package com.redislabs.research.io;
+
+import com.redislabs.research.Document;
+import com.redislabs.research.DocumentStream;
+import com.redislabs.research.SplittableDocumentStream;
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Tests reading and splitting JSON lines files
+ */
+public class JSONLinesStreamTest extends TestCase {
+
+    private File file;
+    private static final int NUM_DOCS = 1000;
+
+    @Override
+    public void setUp() throws IOException {
+        file = File.createTempFile("research", ".jsonl");
+        try (Writer w = new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8)) {
+            for (int i = 0; i < NUM_DOCS; i++) {
+                Document doc = new Document("doc" + i, i).set("title", "hello world " + i + " El Niño");
+                w.write(doc.toString());
+                w.write('\n');
+                // some blank lines should be skipped
+                if (i % 100 == 0) {
+                    w.write("\n");
+                }
+            }
+        }
+    }
+
+    @Override
+    public void tearDown() {
+        file.delete();
+    }
+
+    private void readAll(DocumentStream stream, Set<String> ids) throws IOException {
+        while (stream.hasNext()) {
+            Document doc = stream.next();
+            assertTrue("duplicate " + doc.getId(), ids.add(doc.getId()));
+            assertTrue(((String) doc.property("title")).endsWith("El Niño"));
+        }
+    }
+
+    public void testRead() throws IOException {
+
+        JSONLinesStream stream = new JSONLinesStream(file.getPath());
+        Set<String> ids = new HashSet<>();
+        readAll(stream, ids);
+        assertEquals(NUM_DOCS, ids.size());
+        assertNull(stream.trySplit());
+    }
+
+    public void testSplit() throws IOException {
+
+        // tiny windows and splits, so lines cross window and split boundaries
+        List<SplittableDocumentStream> streams = new ArrayList<>();
+        streams.add(new JSONLinesStream(file, 100, 10));
+        for (int n = 0; n < 5; n++) {
+            for (int i = streams.size() - 1; i >= 0; i--) {
+                SplittableDocumentStream s = streams.get(i).trySplit();
+                if (s != null) {
+                    streams.add(s);
+                }
+            }
+        }
+        assertEquals(32, streams.size());
+
+        Set<String> ids = new HashSet<>();
+        for (SplittableDocumentStream s : streams) {
+            readAll(s, ids);
+        }
+        assertEquals(NUM_DOCS, ids.size());
+    }
+}
@@ -1,5 +1,6 @@
 package com.redislabs.research.redis;
 
+import com.redislabs.research.Spec;
 import junit.framework.TestCase;
 
 import static org.junit.Assert.*;
@@ -25,4 +26,77 @@ public class BucketEstimatorTest extends TestCase {
 
     }
 
-}
\ No newline at end of file
+    public void testFreeze() {
+
+        SimpleIndex.BucketEstimator be = new SimpleIndex.BucketEstimator(SimpleIndex.BucketEstimator.DEFAULT_SAMPLE_RATE, SimpleIndex.BucketEstimator.DEFAULT_BUFFER_SIZE);
+        assertFalse(be.isFrozen());
+
+        String saved = SimpleIndex.BucketEstimator.serialize(3, new float[]{100, 50, 10, 1});
+        be.load(saved);
+        assertTrue(be.isFrozen());
+        assertEquals(3, be.getVersion());
+
+        // samples are ignored once the boundaries are frozen
+        for (int i = 0; i < 10000; i++) {
+            be.sample((float)Math.random());
+        }
+        assertEquals(0, be.getBucket(100));
+        assertEquals(1, be.getBucket(99));
+        assertEquals(2, be.getBucket(10));
+        assertEquals(3, be.getBucket(1));
+        assertEquals(4, be.getBucket(0.5f));
+
+        assertEquals(saved, SimpleIndex.BucketEstimator.serialize(be.getVersion(), new float[]{100, 50, 10, 1}));
+
+        // boundaries of other quantiles are not loaded
+        be = new SimpleIndex.BucketEstimator(SimpleIndex.BucketEstimator.DEFAULT_SAMPLE_RATE, SimpleIndex.BucketEstimator.DEFAULT_BUFFER_SIZE);
+        saved = SimpleIndex.BucketEstimator.serialize(4, new float[]{100, 50});
+        assertFalse(be.load(saved));
+        assertFalse(be.isFrozen());
+        assertEquals(4, SimpleIndex.BucketEstimator.version(saved));
+    }
+
+    public void testConcurrentSampling() throws Exception {
+
+        final SimpleIndex.BucketEstimator be = new SimpleIndex.BucketEstimator(1.0f, SimpleIndex.BucketEstimator.DEFAULT_BUFFER_SIZE);
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 5000; i++) {
+                        be.sample((float)Math.random());
+                        be.getBucket(0.5f);
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+
+        assertTrue(be.isWarm());
+        assertEquals(0, be.getBucket(1));
+        assertEquals(4, be.getBucket(0.0f));
+    }
+
+    public void testLogSpacedBuckets() {
+
+        Spec.PrefixField field = Spec.prefix("foo", false).setBuckets(8);
+        assertEquals(7, field.quantiles.length);
+        assertEquals(1 - 1.0 / 128, field.quantiles[0], 0.00001);
+        assertEquals(0.5, field.quantiles[6], 0.00001);
+
+        SimpleIndex.BucketEstimator be = new SimpleIndex.BucketEstimator(1.0f, SimpleIndex.BucketEstimator.DEFAULT_BUFFER_SIZE, field.quantiles);
+        assertEquals(8, be.numBuckets());
+        for (int i = 0; i < 100000; i++) {
+            be.sample((float)Math.random());
+        }
+        assertEquals(0, be.getBucket(1));
+        assertEquals(3, be.getBucket(0.95f));
+        assertEquals(7, be.getBucket(0.2f));
+
+    }
+
+}
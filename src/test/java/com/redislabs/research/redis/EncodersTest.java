@@ -1,5 +1,6 @@
 package com.redislabs.research.redis;
 
+import com.redislabs.research.Spec;
 import com.redislabs.research.text.NaiveNormalizer;
 import com.sun.org.apache.xerces.internal.impl.dv.util.HexBin;
 import com.sun.org.apache.xml.internal.serializer.utils.SystemIDResolver;
@@ -19,13 +20,43 @@ public class EncodersTest extends TestCase {
         Encoders.Numeric enc = new Encoders.Numeric();
         byte []bs = enc.encode((3.4456)).get(0);
 
-        assertEquals("400B9096BB98C7E3",HexBin.encode(enc.encode((3.4456d)).get(0)));
-        assertEquals("405C84B6",HexBin.encode(enc.encode((float)3.4456).get(0)));
+        assertEquals("C00B9096BB98C7E3",HexBin.encode(enc.encode((3.4456d)).get(0)));
+        assertEquals("C00B9096C0000000",HexBin.encode(enc.encode((float)3.4456).get(0)));
         assertTrue(HexBin.encode(enc.encode(3.4456).get(0)).compareTo(HexBin.encode(enc.encode((2.4456)).get(0))) > 0);
 
-        assertEquals("0000000000000005",HexBin.encode(enc.encode(5).get(0)));
+        assertEquals("C014000000000000",HexBin.encode(enc.encode(5).get(0)));
 
+        // all types and signs sort in numeric order
+        Number[] ordered = {Double.NEGATIVE_INFINITY, -1e10, -5L, -3.5f, -1, -0.5, 0, 0.25f, 1L, 3, 3.5, 1e10};
+        assertOrdered(enc, ordered);
+        assertEquals(HexBin.encode(enc.encode(0.0).get(0)), HexBin.encode(enc.encode(-0.0).get(0)));
 
+
+    }
+
+    public void testIntegerEncoders() {
+
+        Encoders.Numeric enc = new Encoders.Numeric(Spec.NumericField.Encoding.Long);
+        assertEquals("8000000000000005",HexBin.encode(enc.encode(5).get(0)));
+        assertEquals("7FFFFFFFFFFFFFFB",HexBin.encode(enc.encode(-5L).get(0)));
+        assertOrdered(enc, new Number[]{Long.MIN_VALUE, -300, -1, 0, 1, 255, 256, Long.MAX_VALUE});
+
+        enc = new Encoders.Numeric(Spec.NumericField.Encoding.Varint);
+        assertEquals("80",HexBin.encode(enc.encode(0).get(0)));
+        assertEquals("7F",HexBin.encode(enc.encode(-1).get(0)));
+        assertEquals("820100",HexBin.encode(enc.encode(256).get(0)));
+        assertEquals("7DFEFF",HexBin.encode(enc.encode(-257).get(0)));
+        assertEquals(9, enc.width(Long.MAX_VALUE));
+        assertOrdered(enc, new Number[]{Long.MIN_VALUE, -65536, -257, -256, -2, -1, 0, 1, 255, 256, 65535,
+                Long.MAX_VALUE});
+    }
+
+    private void assertOrdered(Encoders.Numeric enc, Number[] ordered) {
+        for (int i = 1; i < ordered.length; i++) {
+            String prev = HexBin.encode(enc.encode(ordered[i - 1]).get(0));
+            String cur = HexBin.encode(enc.encode(ordered[i]).get(0));
+            assertTrue(ordered[i - 1] + " should sort before " + ordered[i], prev.compareTo(cur) < 0);
+        }
     }
 
 
@@ -76,4 +107,15 @@ public class EncodersTest extends TestCase {
     }
 
 
+
+    public void testDistance() {
+        // Tel Aviv to Jerusalem is about 54km
+        double d = Encoders.Geohash.distance(32.0853, 34.7818, 31.7683, 35.2137);
+        assertTrue(d > 53000 && d < 55000);
+        assertEquals(0.0, Encoders.Geohash.distance(32.0853, 34.7818, 32.0853, 34.7818));
+
+        byte[] buf = new byte[8];
+        Encoders.Geohash.writeDegrees(-179.1234567, buf, 4);
+        assertEquals(-179.1234567, Encoders.Geohash.readDegrees(buf, 4), 1e-9);
+    }
 }
@@ -100,13 +100,110 @@ public class FullTextFacetedIndexTest extends TestCase {
             assertTrue(ids.contains(new Index.Entry("doc1",0)));
             assertTrue(ids.contains(new Index.Entry("doc1",0)));
 
+            idx.delete("doc1");
+            ids = idx.get(new Query("test").filterMatches("foo", "hello"));
+            assertEquals(1, ids.size());
+            assertTrue(ids.contains(new Index.Entry("doc2",0)));
 
 
         } catch (Exception e) {
             e.printStackTrace();
             fail(e.getMessage());
+        } finally {
+            idx.drop();
+        }
+    }
+
+    public void testSorting() throws Exception {
+
+        Spec spec = new Spec(Spec.fulltext("foo", "foo"), Spec.numeric("bar"));
+        FullTextFacetedIndex idx = new FullTextFacetedIndex("redis://localhost:6379", "test",
+                spec, new WordTokenizer(new NaiveNormalizer(), false, null));
+
+        Document[] docs = {
+                new Document("doc1", 0.1f).set("foo", "hello world").set("bar", 3.0),
+                new Document("doc2", 0.2f).set("foo", "hello werld").set("bar", 1.0),
+                new Document("doc3", 0.3f).set("foo", "hello there").set("bar", 2.0),
+        };
+
+        try {
+            idx.index(docs);
+
+            List<Index.Entry> ids = idx.get(new Query("test").filterMatches("foo", "hello")
+                    .sortBy(Query.Sorting.SCORE, true));
+            assertEquals(3, ids.size());
+            assertEquals("doc1", ids.get(0).id);
+
+            ids = idx.get(new Query("test").filterMatches("foo", "hello").sortBy("bar", false).limit(0, 2));
+            assertEquals(2, ids.size());
+            assertEquals("doc1", ids.get(0).id);
+            assertEquals("doc3", ids.get(1).id);
+            assertEquals(3.0, ids.get(0).score);
+
+            ids = idx.get(new Query("test").filterMatches("foo", "hello").sortBy("bar", true));
+            assertEquals("doc2", ids.get(0).id);
+        } finally {
+            idx.drop();
         }
     }
 
+    public void testPlanner() throws Exception {
+
+        Spec spec = new Spec(Spec.fulltext("foo", "foo"), Spec.numeric("bar"));
+        FullTextFacetedIndex idx = new FullTextFacetedIndex("redis://localhost:6379", "test",
+                spec, new WordTokenizer(new NaiveNormalizer(), false, null));
+
+        try {
+            for (int i = 0; i < 100; i++) {
+                idx.index(new Document("doc" + i, 1 + i % 7).set("foo", i % 10 == 0 ? "hello rare" : "hello")
+                        .set("bar", (double) i));
+            }
+
+            // the narrow range is more selective than the common term, and only filters by it
+            List<Index.Entry> ids = idx.get(new Query("test").filterMatches("foo", "hello")
+                    .filterBetween("bar", 10.0, 12.0));
+            assertEquals(3, ids.size());
+            // the range has no weight, so the text scores are kept
+            assertEquals("doc12", ids.get(0).id);
+            assertEquals(6.0, ids.get(0).score, 0.0001);
+
+            // the rare term filtered by a wide range
+            ids = idx.get(new Query("test").filterBetween("bar", 15.0, 95.0).filterMatches("foo", "rare"));
+            assertEquals(8, ids.size());
+
+            // a filter matching nothing ends the query early
+            ids = idx.get(new Query("test").filterMatches("foo", "hello").filterBetween("bar", 500.0, 600.0));
+            assertEquals(0, ids.size());
+        } finally {
+            idx.drop();
+        }
+
+        spec = new Spec(Spec.fulltext("foo", "foo"), Spec.geo("location", Encoders.Geohash.PRECISION_4KM));
+        idx = new FullTextFacetedIndex("redis://localhost:6379", "test",
+                spec, new WordTokenizer(new NaiveNormalizer(), false, null));
+        try {
+            // every tenth document is close to the center, the others are about 100km away
+            for (int i = 0; i < 100; i++) {
+                Double[] location = i % 10 == 0 ? new Double[]{40.7142700, -74.0059700} :
+                        new Double[]{41.5, -73.0};
+                idx.index(new Document("doc" + i, 1).set("foo", i % 20 == 0 ? "hello world rare" : "hello world")
+                        .set("location", location));
+            }
 
-}
\ No newline at end of file
+            // the radius is more selective than the common terms, which only filter it
+            List<Index.Entry> ids = idx.get(new Query("test").filterMatches("foo", "hello world")
+                    .filterRadius("location", 40.7142700, -74.0059700, 2000d));
+            assertEquals(10, ids.size());
+            for (Index.Entry ent : ids) {
+                assertEquals(0, Integer.parseInt(ent.id.substring(3)) % 10);
+            }
+
+            // the rare term filtered by the radius
+            ids = idx.get(new Query("test").filterRadius("location", 40.7142700, -74.0059700, 2000d)
+                    .filterMatches("foo", "rare"));
+            assertEquals(5, ids.size());
+        } finally {
+            idx.drop();
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package com.redislabs.research.redis;
+
+import com.redislabs.research.Document;
+import com.redislabs.research.Index;
+import com.redislabs.research.Query;
+import com.redislabs.research.Spec;
+import junit.framework.TestCase;
+import redis.clients.jedis.Jedis;
+
+import java.util.List;
+
+/**
+ * Tests for IdDictionary
+ */
+public class IdDictionaryTest extends TestCase {
+
+    public void testWriteRead() {
+        IdDictionary dict = new IdDictionary("testdict", IdDictionary.Width.Int32, "redis://localhost:6379");
+
+        byte[] buf = new byte[6];
+        assertEquals(5, dict.write(0xfedcba98L, buf, 1));
+        assertEquals(0xfedcba98L, dict.read(buf, 1));
+        assertEquals((byte) 0xfe, buf[1]);
+        assertEquals((byte) 0x98, buf[4]);
+    }
+
+    public void testAllocate() {
+        IdDictionary dict = new IdDictionary("testdict", IdDictionary.Width.Int64, "redis://localhost:6379");
+        dict.drop();
+        try {
+            long[] ids = dict.allocate("foo", "bar", "foo");
+            assertEquals(ids[0], ids[2]);
+            assertTrue(ids[0] != ids[1]);
+
+            // a fresh client sees the same ids
+            IdDictionary other = new IdDictionary("testdict", IdDictionary.Width.Int64, "redis://localhost:6379");
+            assertEquals(ids[1], other.allocate("bar")[0]);
+            assertEquals(ids[0], (long) other.lookup("foo")[0]);
+            assertNull(other.lookup("baz")[0]);
+
+            String[] resolved = other.resolve(ids[1], ids[0], 12345);
+            assertEquals("bar", resolved[0]);
+            assertEquals("foo", resolved[1]);
+            assertNull(resolved[2]);
+
+            // the dictionary's keys do not share the document store's prefix
+            try (Jedis conn = new Jedis("localhost", 6379)) {
+                assertTrue(conn.exists("i:testdict:fwd"));
+                assertFalse(conn.exists("d:testdict:fwd"));
+            }
+        } finally {
+            dict.drop();
+        }
+    }
+
+    public void testBinaryIds() throws Exception {
+        IdDictionary dict = new IdDictionary("testdict", IdDictionary.Width.Int32, "redis://localhost:6379");
+        SimpleIndex idx = new SimpleIndex("redis://localhost:6379", "myindex", new Spec(Spec.prefix("foo", false)));
+        idx.setIdDictionary(dict);
+
+        // these ids end with bytes that look like compact and suffix entry versions
+        for (long id : new long[]{256, 258}) {
+            // [bucket]hello::[score]:[id]
+            byte[] legacy = new byte[1 + 5 + 2 + 4 + 1 + 4];
+            System.arraycopy("hello::".getBytes(), 0, legacy, 1, 7);
+            Encoders.Numeric.writeInt(Float.floatToIntBits(1.5f), legacy, 8);
+            legacy[12] = ':';
+            dict.write(id, legacy, 13);
+
+            SimpleIndex.EntryCursor cursor = idx.cursor().reset(legacy);
+            assertEquals(id, cursor.internalId(dict));
+            assertEquals(1.5f, cursor.score());
+
+            // [bucket]hello:[score][id]
+            idx.setLayout(SimpleIndex.Layout.Compact);
+            byte[] compact = new byte[1 + 6 + 4 + 4];
+            System.arraycopy("hello:".getBytes(), 0, compact, 1, 6);
+            Encoders.Numeric.writeInt(Float.floatToIntBits(1.5f), compact, 7);
+            dict.write(id, compact, 11);
+
+            cursor = idx.cursor().reset(compact);
+            assertEquals(id, cursor.internalId(dict));
+            assertEquals(1.5f, cursor.score());
+            idx.setLayout(SimpleIndex.Layout.Legacy);
+        }
+    }
+
+    public void testIndexWithDictionary() throws Exception {
+        IdDictionary dict = new IdDictionary("testdict", IdDictionary.Width.Int32, "redis://localhost:6379");
+        SimpleIndex idx = new SimpleIndex("redis://localhost:6379", "myindex", new Spec(Spec.prefix("foo", false)));
+        idx.setIdDictionary(dict);
+        try {
+            idx.index(new Document("4f1c8e0a-7e0c-4d3b-9a0b-6b1d2f0e9c11").setScore(2).set("foo", "hello world"),
+                    new Document("doc2").setScore(1).set("foo", "hello werld"));
+
+            List<Index.Entry> ids = idx.get(new Query("myindex").filterPrefix("foo", "hell"));
+            assertEquals(2, ids.size());
+            assertEquals("4f1c8e0a-7e0c-4d3b-9a0b-6b1d2f0e9c11", ids.get(0).id);
+            assertEquals("doc2", ids.get(1).id);
+
+            idx.delete("doc2");
+            assertEquals(1, idx.get(new Query("myindex").filterPrefix("foo", "hell")).size());
+        } finally {
+            idx.drop();
+            dict.drop();
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package com.redislabs.research.redis;
+
+import com.redislabs.research.Index;
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tests for NearCache
+ */
+public class NearCacheTest extends TestCase {
+
+    private static NearCache.Key key(String s) {
+        return new NearCache.Key(s.getBytes());
+    }
+
+    private static List<Index.Entry> result(String id) {
+        List<Index.Entry> ret = new ArrayList<>();
+        ret.add(new Index.Entry(id, 1));
+        return ret;
+    }
+
+    public void testGetPut() {
+        NearCache cache = new NearCache(10, 60000);
+        assertNull(cache.get(key("foo")));
+        cache.put(key("foo"), result("doc1"), cache.getGeneration());
+
+        List<Index.Entry> res = cache.get(key("foo"));
+        assertEquals(1, res.size());
+        assertEquals("doc1", res.get(0).id);
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.getMisses());
+    }
+
+    public void testInvalidate() {
+        NearCache cache = new NearCache(10, 60000);
+        long generation = cache.getGeneration();
+        cache.put(key("foo"), result("doc1"), generation);
+        cache.invalidate();
+        assertNull(cache.get(key("foo")));
+
+        // results computed before the invalidation are not admitted
+        cache.put(key("foo"), result("doc1"), generation);
+        assertNull(cache.get(key("foo")));
+
+        // a change of the remote generation invalidates the cache
+        cache.put(key("foo"), result("doc1"), cache.getGeneration());
+        cache.observeGeneration("1");
+        cache.put(key("bar"), result("doc1"), cache.getGeneration());
+        cache.observeGeneration("1");
+        assertNull(cache.get(key("foo")));
+        assertNotNull(cache.get(key("bar")));
+    }
+
+    public void testTTL() throws InterruptedException {
+        NearCache cache = new NearCache(10, 20);
+        cache.put(key("foo"), result("doc1"), cache.getGeneration());
+        assertNotNull(cache.get(key("foo")));
+        Thread.sleep(40);
+        assertNull(cache.get(key("foo")));
+    }
+
+    public void testAdmission() {
+        NearCache cache = new NearCache(2, 60000);
+        for (int i = 0; i < 5; i++) {
+            cache.get(key("foo"));
+            cache.get(key("bar"));
+        }
+        cache.put(key("foo"), result("doc1"), cache.getGeneration());
+        cache.put(key("bar"), result("doc2"), cache.getGeneration());
+
+        // a one-off query does not replace popular ones
+        cache.get(key("baz"));
+        cache.put(key("baz"), result("doc3"), cache.getGeneration());
+        assertEquals(1, cache.getRejections());
+        assertNotNull(cache.get(key("foo")));
+        assertNotNull(cache.get(key("bar")));
+
+        // once it becomes more popular, it evicts the least recently used result
+        for (int i = 0; i < 10; i++) {
+            cache.get(key("baz"));
+        }
+        cache.put(key("baz"), result("doc3"), cache.getGeneration());
+        assertEquals(1, cache.getEvictions());
+        assertEquals(2, cache.size());
+        assertNull(cache.get(key("foo")));
+        assertNotNull(cache.get(key("baz")));
+    }
+}
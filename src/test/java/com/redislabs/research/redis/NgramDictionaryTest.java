@@ -0,0 +1,72 @@
+package com.redislabs.research.redis;
+
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Tests for NgramDictionary
+ */
+public class NgramDictionaryTest extends TestCase {
+
+    private NgramDictionary dictionary(String... values) {
+        NgramDictionary dict = new NgramDictionary("n:test");
+        for (String value : values) {
+            dict.learn(Arrays.asList(value.getBytes()));
+        }
+        return dict;
+    }
+
+    public void testExpand() {
+        NgramDictionary dict = dictionary("hello world", "help", "yellow");
+
+        // a substitution
+        List<String> candidates = dict.expand("hwll", 1, 64);
+        assertTrue(candidates.contains("hell"));
+        assertFalse(candidates.contains("hwll"));
+
+        // a transposition
+        candidates = dict.expand("hlep", 1, 64);
+        assertTrue(candidates.contains("help"));
+
+        // candidates must start like some value does
+        candidates = dict.expand("ello", 1, 64);
+        assertTrue(candidates.contains("hello"));
+        assertTrue(candidates.contains("yello"));
+        assertFalse(candidates.contains("ello"));
+
+        // two typos need two edits
+        assertTrue(dict.expand("yrllw", 1, 64).isEmpty());
+        assertTrue(dict.expand("yrllw", 2, 64).contains("yello"));
+    }
+
+    public void testCoveredCandidates() {
+        NgramDictionary dict = dictionary("hello", "help");
+
+        // "hel" already matches everything its extensions do
+        List<String> candidates = dict.expand("hel", 1, 64);
+        assertTrue(candidates.contains("hel"));
+        assertFalse(candidates.contains("help"));
+        for (String candidate : candidates) {
+            for (String other : candidates) {
+                assertTrue(candidate.equals(other) || !candidate.startsWith(other));
+            }
+        }
+    }
+
+    public void testLearn() {
+        NgramDictionary dict = new NgramDictionary("n:test");
+        assertEquals(3, dict.learn(Arrays.asList("abc".getBytes())).size());
+
+        // only bigrams we have not seen are returned, and sent to redis
+        assertEquals(Collections.singleton("cd"), dict.learn(Arrays.asList("abcd".getBytes())));
+        assertTrue(dict.learn(Arrays.asList("abcd".getBytes(), "abc".getBytes())).isEmpty());
+    }
+
+    public void testMaxCandidates() {
+        NgramDictionary dict = dictionary("abcdefghijklmnopqrstuvwxyz", "zyxwvutsrqponmlkjihgfedcba");
+        assertTrue(dict.expand("mno", 2, 10).size() <= 10);
+    }
+}
@@ -60,5 +60,54 @@ public class PartitionedIndexTest extends TestCase {
 
     }
 
+    public void testSorting() throws Exception {
 
-}
\ No newline at end of file
+        Spec spec = new Spec(Spec.prefix("foo", false));
+        PartitionedIndex pi = PartitionedIndex.newSimple("foo", spec, 3, 500, 3, "redis://localhost:6379");
+        pi.drop();
+        try {
+            pi.index(new Document("doc1").setScore(1.0f).set("foo", "hello c"),
+                    new Document("doc2").setScore(3.0f).set("foo", "hello a"),
+                    new Document("doc3").setScore(2.0f).set("foo", "hello b"),
+                    new Document("doc4").setScore(4.0f).set("foo", "hello d"));
+
+            // the partitions' results are merged by the first field, then paged
+            List<Index.Entry> ids = pi.get(new Query("foo").filterPrefix("foo", "hello").sortBy("foo", true)
+                    .limit(1, 2));
+            assertEquals(2, ids.size());
+            assertEquals("doc3", ids.get(0).id);
+            assertEquals("doc1", ids.get(1).id);
+
+            ids = pi.get(new Query("foo").filterPrefix("foo", "hello").sortBy("foo", false).limit(0, 1));
+            assertEquals("doc4", ids.get(0).id);
+
+            ids = pi.get(new Query("foo").filterPrefix("foo", "hello").sortBy(Query.Sorting.SCORE, true)
+                    .limit(0, 2));
+            assertEquals("doc1", ids.get(0).id);
+            assertEquals("doc3", ids.get(1).id);
+
+            ids = pi.get(new Query("foo").filterPrefix("foo", "hello").limit(0, 2));
+            assertEquals("doc4", ids.get(0).id);
+            assertEquals("doc2", ids.get(1).id);
+        } finally {
+            pi.drop();
+        }
+
+        // full text indexes sort by a field by returning its values as scores
+        spec = new Spec(Spec.fulltext("foo", "foo"), Spec.numeric("bar"));
+        pi = PartitionedIndex.newFulltext("foo", spec, 3, 500, 3, "redis://localhost:6379");
+        try {
+            pi.index(new Document("doc1", 0.1f).set("foo", "hello").set("bar", 3.0),
+                    new Document("doc2", 0.2f).set("foo", "hello").set("bar", 1.0),
+                    new Document("doc3", 0.3f).set("foo", "hello").set("bar", 2.0));
+
+            List<Index.Entry> ids = pi.get(new Query("foo").filterMatches("foo", "hello").sortBy("bar", true));
+            assertEquals(3, ids.size());
+            assertEquals("doc2", ids.get(0).id);
+            assertEquals("doc3", ids.get(1).id);
+            assertEquals("doc1", ids.get(2).id);
+        } finally {
+            pi.drop();
+        }
+    }
+}
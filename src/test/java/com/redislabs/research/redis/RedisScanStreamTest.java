@@ -0,0 +1,92 @@
+package com.redislabs.research.redis;
+
+import com.redislabs.research.Document;
+import com.redislabs.research.Spec;
+import junit.framework.TestCase;
+import redis.clients.jedis.Jedis;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Tests scanning existing redis data into documents
+ */
+public class RedisScanStreamTest extends TestCase {
+
+    private Spec spec = new Spec(Spec.prefix("title", false), Spec.numeric("price"),
+            Spec.geo("location", Encoders.Geohash.PRECISION_4KM));
+
+    public void testToDocument() {
+
+        RedisScanStream stream = new RedisScanStream(spec, RedisScanStream.ValueType.Hash, "item:*")
+                .setStripPrefix("item:").setScoreField("rank");
+
+        Map<String, String> values = new HashMap<>();
+        values.put("title", "hello world");
+        values.put("price", "3.5");
+        values.put("location", "32.0667,34.8000");
+        values.put("rank", "0.5");
+        values.put("other", "not indexed");
+
+        Document doc = stream.toDocument("item:123", values);
+        assertEquals("123", doc.getId());
+        assertEquals(0.5f, doc.getScore(), 0.0001);
+        assertEquals("hello world", doc.property("title"));
+        assertEquals(3.5, (Double) doc.property("price"), 0.0001);
+        assertEquals(34.8, ((Double[]) doc.property("location"))[1], 0.0001);
+        assertFalse(doc.hasProperty("other"));
+
+        values.put("location", "32.0667");
+        try {
+            stream.toDocument("item:123", values);
+            fail("invalid locations are rejected");
+        } catch (IllegalArgumentException e) {
+        }
+    }
+
+    public void testScan() throws Exception {
+
+        try (Jedis conn = new Jedis("localhost", 6379)) {
+            for (int i = 0; i < 100; i++) {
+                conn.hset("scantest:" + i, "title", "hello " + i);
+                conn.hset("scantest:" + i, "price", Integer.toString(i));
+                conn.hset("scantest:" + i, "location", "32.0667,34.8000");
+                conn.set("scantestjson:" + i, "{\"title\":\"hello " + i + "\",\"price\":" + i +
+                        ",\"location\":[32.0667,34.8]}");
+            }
+            // keys of the wrong type are skipped
+            conn.set("scantest:wrong", "hello");
+            conn.hset("scantestjson:wrong", "title", "hello");
+            // as are values that are not documents of the spec
+            conn.hset("scantest:bad", "price", "cheap");
+            conn.set("scantestjson:bad", "{\"title\":");
+        }
+
+        try {
+            for (RedisScanStream.ValueType type : RedisScanStream.ValueType.values()) {
+                String prefix = type == RedisScanStream.ValueType.Hash ? "scantest:" : "scantestjson:";
+                RedisScanStream stream = new RedisScanStream(spec, type, prefix + "*", "redis://localhost:6379")
+                        .setStripPrefix(prefix).setBatchSize(10);
+
+                Set<String> ids = new HashSet<>();
+                while (stream.hasNext()) {
+                    Document doc = stream.next();
+                    assertEquals("hello " + doc.getId(), doc.property("title"));
+                    ids.add(doc.getId());
+                }
+                assertEquals(100, ids.size());
+                assertEquals(1, stream.getSkippedKeys());
+                assertEquals(1, stream.getInvalidRecords());
+            }
+        } finally {
+            try (Jedis conn = new Jedis("localhost", 6379)) {
+                for (int i = 0; i < 100; i++) {
+                    conn.del("scantest:" + i, "scantestjson:" + i);
+                }
+                conn.del("scantest:wrong", "scantestjson:wrong", "scantest:bad", "scantestjson:bad");
+            }
+        }
+    }
+}
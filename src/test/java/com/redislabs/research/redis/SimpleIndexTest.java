@@ -1,5 +1,7 @@
 package com.redislabs.research.redis;
 
+import ch.hsr.geohash.BoundingBox;
+import ch.hsr.geohash.GeoHash;
 import com.redislabs.research.Document;
 import com.redislabs.research.Index;
 import com.redislabs.research.Query;
@@ -12,7 +14,10 @@ import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 /**
  * Created by dvirsky on 08/02/16.
@@ -37,6 +42,204 @@ public class SimpleIndexTest extends TestCase {
 
     }
 
+    public void testCompactLayout() throws Exception {
+
+        Document doc = new Document("123").setScore(0.512f).set("foo", "hello world").set("bar", 123);
+        Spec spec = new Spec(Spec.prefix("foo", false), Spec.numeric("bar", Spec.NumericField.Encoding.Varint));
+
+        SimpleIndex idx = new SimpleIndex("redis://localhost:6379", "myindex", spec);
+        byte[] legacy = idx.encode(doc).get(0);
+
+        idx.setLayout(SimpleIndex.Layout.Compact);
+        byte[] compact = idx.encode(doc).get(0);
+        // no separators after the number, the score and the id, but a length and a version byte
+        assertEquals(legacy.length - 1, compact.length);
+        assertEquals(SimpleIndex.COMPACT_V1, compact[compact.length - 1]);
+
+        // entries are read in the index's layout
+        Index.Entry ent = idx.extractEntry(compact);
+        assertEquals(doc.getId(), ent.id);
+        assertEquals(doc.getScore(), ent.score, 0.0001);
+        idx.setLayout(SimpleIndex.Layout.Legacy);
+        ent = idx.extractEntry(legacy);
+        assertEquals(doc.getId(), ent.id);
+        assertEquals(doc.getScore(), ent.score, 0.0001);
+
+        // with fixed width ids there is no length or version byte either, which saves space on prefix fields too
+        IdDictionary dict = new IdDictionary("testdict", IdDictionary.Width.Int32, "redis://localhost:6379");
+        idx = new SimpleIndex("redis://localhost:6379", "myindex", new Spec(Spec.prefix("foo", false)));
+        idx.setIdDictionary(dict);
+        try {
+            legacy = idx.encode(doc).get(0);
+            idx.setLayout(SimpleIndex.Layout.Compact);
+            compact = idx.encode(doc).get(0);
+            assertEquals(legacy.length - 2, compact.length);
+
+            SimpleIndex.EntryCursor cursor = idx.cursor().reset(compact);
+            assertEquals((long) dict.lookup(doc.getId())[0], cursor.internalId(dict));
+            assertEquals(doc.getScore(), cursor.score(), 0.0001);
+        } finally {
+            dict.drop();
+        }
+
+        // numeric ranges have no separators either
+        spec = new Spec(Spec.numeric("a", Spec.NumericField.Encoding.Varint),
+                Spec.numeric("b", Spec.NumericField.Encoding.Varint));
+        idx = new SimpleIndex("redis://localhost:6379", "myindex", spec).setLayout(SimpleIndex.Layout.Compact);
+        SimpleIndex.Range rng = idx.getRange(new Query("myindex").filterEquals("a", 1).filterGreaterThan("b", 5),
+                (byte)0);
+        assertEquals("5B81018106", HexBin.encode(rng.from));
+        assertEquals("288102", HexBin.encode(rng.to));
+    }
+
+    public void testMaxEntriesPerDocument() throws Exception {
+
+        Document doc = new Document("123").setScore(0.5f).set("foo", "hello world foo bar");
+
+        Spec spec = new Spec(Spec.prefix("foo", true));
+
+        SimpleIndex idx = new SimpleIndex("redis://localhost:6379", "myindex", spec);
+        assertEquals(4, idx.encode(doc).size());
+        assertEquals(0, idx.getTruncatedDocuments());
+
+        idx.setMaxEntriesPerDocument(2);
+        List<byte[]> entries = idx.encode(doc);
+        assertEquals(2, entries.size());
+        assertEquals(1, idx.getTruncatedDocuments());
+        assertEquals("123", idx.extractEntry(entries.get(1)).id);
+
+        // a document exactly at the cap is not counted as truncated
+        idx.setMaxEntriesPerDocument(4);
+        assertEquals(4, idx.encode(doc).size());
+        assertEquals(1, idx.getTruncatedDocuments());
+    }
+
+    public void testRecord() throws Exception {
+
+        Document doc = new Document("123").setScore(0.5f).set("foo", "hello world foo bar").set("bar", 123);
+        SimpleIndex idx = new SimpleIndex("redis://localhost:6379", "myindex",
+                new Spec(Spec.prefix("foo", true), Spec.numeric("bar")));
+
+        SimpleIndex.EntryIterator it = idx.entries(doc);
+        SimpleIndex.RecordWriter writer = new SimpleIndex.RecordWriter(it.trailer());
+        List<byte[]> entries = new ArrayList<>();
+        List<byte[]> items = new ArrayList<>();
+        items.add(writer.header());
+        int size = 0;
+        while (it.hasNext()) {
+            byte[] entry = it.next();
+            entries.add(entry);
+            items.add(writer.item(entry));
+            size += 2 + entry.length;
+        }
+
+        // the record only holds the entries' trailer once
+        byte[] record = SimpleIndex.encodeRecord(items);
+        assertTrue(record.length < size);
+
+        List<byte[]> decoded = SimpleIndex.decodeEntries(record);
+        assertEquals(entries.size(), decoded.size());
+        for (int i = 0; i < entries.size(); i++) {
+            assertTrue(Arrays.equals(entries.get(i), decoded.get(i)));
+        }
+    }
+
+    public void testCompactSuffixes() throws Exception {
+
+        Document doc = new Document("document-123").setScore(0.5f).set("foo", "hello world foo").set("bar", 123);
+        Spec spec = new Spec(Spec.prefix("foo", true), Spec.numeric("bar"));
+
+        SimpleIndex idx = new SimpleIndex("redis://localhost:6379", "myindex", spec)
+                .setLayout(SimpleIndex.Layout.Compact);
+        idx.setCompactSuffixes(true);
+        try {
+            idx.encode(doc);
+            fail("compact suffixes require an id dictionary");
+        } catch (RuntimeException e) {
+        }
+
+        IdDictionary dict = new IdDictionary("testdict", IdDictionary.Width.Int32, "redis://localhost:6379");
+        try {
+            idx.setCompactSuffixes(false).setIdDictionary(dict);
+            byte[] full = idx.encode(doc).get(0);
+
+            idx.setCompactSuffixes(true);
+            List<byte[]> entries = idx.encode(doc);
+            assertEquals(3, entries.size());
+            assertTrue(Arrays.equals(full, entries.get(0)));
+
+            // suffix entries only hold the suffix, the score and the internal id
+            byte[] suffix = entries.get(2);
+            assertEquals(1 + "foo".length() + 1 + 4 + 4, suffix.length);
+            SimpleIndex.EntryCursor cursor = idx.cursor().reset(suffix);
+            assertEquals((long) dict.lookup(doc.getId())[0], cursor.internalId(dict));
+            assertEquals(doc.getScore(), cursor.score(), 0.0001);
+
+            // even with a single field, they are shorter than the legacy entries of the same suffix
+            SimpleIndex legacy = new SimpleIndex("redis://localhost:6379", "myindex",
+                    new Spec(Spec.prefix("foo", true)));
+            byte[] legacySuffix = legacy.encode(doc).get(2);
+            idx = new SimpleIndex("redis://localhost:6379", "myindex", new Spec(Spec.prefix("foo", true)))
+                    .setLayout(SimpleIndex.Layout.Compact).setCompactSuffixes(true);
+            idx.setIdDictionary(dict);
+            suffix = idx.encode(doc).get(2);
+            assertEquals(legacySuffix.length - 2 - doc.getId().length() + 4, suffix.length);
+        } finally {
+            dict.drop();
+        }
+
+        try {
+            new SimpleIndex("redis://localhost:6379", "myindex", new Spec(Spec.prefix("foo", false)))
+                    .setCompactSuffixes(true);
+            fail("compact suffixes require a suffix indexed field");
+        } catch (RuntimeException e) {
+        }
+
+        dict = new IdDictionary("testdict", IdDictionary.Width.Int32, "redis://localhost:6379");
+        idx = new SimpleIndex("redis://localhost:6379", "myindex", new Spec(Spec.prefix("foo", true)))
+                .setLayout(SimpleIndex.Layout.Compact).setCompactSuffixes(true);
+        idx.setIdDictionary(dict);
+        try {
+            idx.index(new Document("doc1").setScore(1).set("foo", "foo bar foo bar"),
+                    new Document("doc2").setScore(0.5f).set("foo", "bar baz"));
+
+            // doc1 matches through two of its suffixes but is returned once
+            List<Index.Entry> ids = idx.get(new Query("myindex").filterPrefix("foo", "bar"));
+            assertEquals(2, ids.size());
+            assertEquals("doc1", ids.get(0).id);
+            assertEquals("doc2", ids.get(1).id);
+
+            idx.delete("doc1");
+            ids = idx.get(new Query("myindex").filterPrefix("foo", "bar"));
+            assertEquals(1, ids.size());
+            assertEquals("doc2", ids.get(0).id);
+        } finally {
+            idx.drop();
+            dict.drop();
+        }
+    }
+
+    public void testFilteredPages() throws Exception {
+
+        SimpleIndex idx = new SimpleIndex("redis://localhost:6379", "myindex", new Spec(Spec.prefix("foo", true)));
+        idx.drop();
+        try {
+            // doc1 matches through more entries than the first walk fetches
+            idx.index(new Document("doc1").setScore(10).set("foo", "bar bar bar bar bar bar"),
+                    new Document("doc2").setScore(1).set("foo", "bar baz"),
+                    new Document("doc3").setScore(0.5f).set("foo", "bar"));
+
+            for (SimpleIndex.BucketWalk walk : SimpleIndex.BucketWalk.values()) {
+                idx.setBucketWalk(walk);
+                List<Index.Entry> ids = idx.get(new Query("myindex").filterPrefix("foo", "bar").limit(0, 2));
+                assertEquals(2, ids.size());
+                assertEquals("doc1", ids.get(0).id);
+            }
+        } finally {
+            idx.drop();
+        }
+    }
+
     public void testIndex() {
 
 
@@ -92,6 +295,236 @@ public class SimpleIndexTest extends TestCase {
 
     }
 
+    public void testBucketWalk() throws Exception {
+
+        Spec spec = new Spec(Spec.prefix("foo", false));
+        SimpleIndex idx = new SimpleIndex("redis://localhost:6379", "myindex", spec);
+
+        try {
+            for (int z = 0; z < 200; z++) {
+                idx.index(new Document(String.format("doc_%d", z)).setScore(z).set("foo", String.format("hello %d", z)));
+            }
+
+            // all modes should return the same pages, and pages should not overlap
+            List<Index.Entry> expected = idx.setBucketWalk(SimpleIndex.BucketWalk.Serial)
+                    .get(new Query("myindex").filterPrefix("foo", "hell").limit(0, 30));
+            assertEquals(30, expected.size());
+
+            for (SimpleIndex.BucketWalk walk : SimpleIndex.BucketWalk.values()) {
+                idx.setBucketWalk(walk);
+                List<Index.Entry> ids = idx.get(new Query("myindex").filterPrefix("foo", "hell").limit(0, 30));
+                assertEquals(expected, ids);
+
+                ids = idx.get(new Query("myindex").filterPrefix("foo", "hell").limit(10, 10));
+                assertEquals(expected.subList(10, 20), ids);
+            }
+        } finally {
+            idx.drop();
+        }
+    }
+
+    public void testBucketRanges() throws Exception {
+
+        Spec spec = new Spec(Spec.prefix("foo", false).setBuckets(6), Spec.numeric("bar"));
+        SimpleIndex idx = new SimpleIndex("redis://localhost:6379", "myindex", spec);
+
+        // all buckets are walked, including the bottom one
+        List<List<SimpleIndex.Range>> ranges = idx.bucketRanges(new Query("myindex").filterPrefix("foo", "hell"));
+        assertEquals(6, ranges.size());
+        assertEquals(1, ranges.get(5).size());
+        assertEquals(5, ranges.get(5).get(0).from[1]);
+
+        // IN filters expand into a range per combination of values in every bucket
+        ranges = idx.bucketRanges(new Query("myindex").filterIn("foo", "hello", "world").filterIn("bar", 1, 2, 3));
+        assertEquals(6, ranges.size());
+        assertEquals(6, ranges.get(0).size());
+
+        // an expansion past the limit names the filter that caused it
+        Object[] values = new Object[SimpleIndex.MAX_IN_EXPANSION + 1];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = i;
+        }
+        try {
+            idx.bucketRanges(new Query("myindex").filterIn("bar", values));
+            fail("the expansion is limited");
+        } catch (RuntimeException e) {
+            assertTrue(e.getMessage().contains("In filter on bar"));
+        }
+
+        // ranges that do not depend on the bucket are walked once
+        spec = new Spec(Spec.numeric("bar"), Spec.prefix("foo", false));
+        idx = new SimpleIndex("redis://localhost:6379", "myindex", spec);
+        ranges = idx.bucketRanges(new Query("myindex").filterBetween("bar", 1, 10));
+        assertEquals(1, ranges.size());
+    }
+
+    // entries of specs with a geo field carry the location, and are parsed as such
+    public void testCompactLocation() throws Exception {
+
+        Spec spec = new Spec(Spec.prefix("foo", false), Spec.geo("loc", Encoders.Geohash.PRECISION_4KM));
+        SimpleIndex idx = new SimpleIndex("redis://localhost:6379", "myindex", spec).setLayout(SimpleIndex.Layout.Compact);
+        byte[] located = idx.encode(new Document("123").setScore(0.5f).set("foo", "hello")
+                .set("loc", new Double[]{32.0667, 34.8000})).get(0);
+        assertEquals(SimpleIndex.COMPACT_GEO_V1, located[located.length - 1]);
+        SimpleIndex.EntryCursor cursor = idx.cursor().reset(located);
+        assertTrue(cursor.hasLocation());
+        assertEquals("123", cursor.entry().id);
+    }
+
+    public void testIn() throws Exception {
+
+        Spec spec = new Spec(Spec.prefix("foo", false), Spec.numeric("bar"));
+        SimpleIndex idx = new SimpleIndex("redis://localhost:6379", "myindex", spec);
+        idx.drop();
+
+        Document[] docs = {
+                new Document("doc1").setScore(1.0f).set("foo", "hello").set("bar", 1),
+                new Document("doc2").setScore(3.0f).set("foo", "world").set("bar", 2),
+                new Document("doc3").setScore(2.0f).set("foo", "hello").set("bar", 3),
+        };
+
+        try {
+            idx.index(docs);
+            for (SimpleIndex.BucketWalk walk : SimpleIndex.BucketWalk.values()) {
+                idx.setBucketWalk(walk);
+
+                // results of several ranges are merged by score
+                List<Index.Entry> ids = idx.get(new Query("myindex").filterIn("foo", "hello", "world"));
+                assertEquals(3, ids.size());
+                assertEquals("doc2", ids.get(0).id);
+                assertEquals("doc3", ids.get(1).id);
+                assertEquals("doc1", ids.get(2).id);
+
+                // a page of merged ranges has the best entries of all of them
+                ids = idx.get(new Query("myindex").filterIn("foo", "hello", "world").limit(0, 2));
+                assertEquals(2, ids.size());
+                assertEquals("doc2", ids.get(0).id);
+                assertEquals("doc3", ids.get(1).id);
+
+                ids = idx.get(new Query("myindex").filterEquals("foo", "hello").filterIn("bar", 1, 2));
+                assertEquals(1, ids.size());
+                assertEquals("doc1", ids.get(0).id);
+            }
+        } finally {
+            idx.drop();
+        }
+    }
+
+    public void testNearCache() throws Exception {
+
+        Spec spec = new Spec(Spec.prefix("foo", false));
+        SimpleIndex idx = new SimpleIndex("redis://localhost:6379", "myindex", spec);
+        idx.setNearCache(new NearCache(100, 60000));
+        idx.drop();
+
+        try {
+            idx.index(new Document("doc1").setScore(1.0f).set("foo", "hello world"));
+            Query q = new Query("myindex").filterPrefix("foo", "hell");
+            assertEquals(1, idx.get(q).size());
+            assertEquals(1, idx.get(q).size());
+            assertEquals(1, idx.getNearCache().getHits());
+
+            // indexing invalidates the cached results
+            idx.index(new Document("doc2").setScore(2.0f).set("foo", "hello werld"));
+            assertEquals(2, idx.get(q).size());
+        } finally {
+            idx.drop();
+        }
+    }
+
+    public void testTopK() throws Exception {
+
+        Spec spec = new Spec(Spec.prefix("foo", false), Spec.numeric("bar"));
+        SimpleIndex idx = new SimpleIndex("redis://localhost:6379", "myindex", spec);
+        idx.setTopK(2, 2);
+        idx.drop();
+
+        Document[] docs = {
+                new Document("doc1").setScore(1.0f).set("foo", "hello world").set("bar", 2),
+                new Document("doc2").setScore(3.0f).set("foo", "hello werld").set("bar", 1),
+                new Document("doc3").setScore(2.0f).set("foo", "help").set("bar", 1),
+        };
+
+        try {
+            idx.index(docs);
+
+            // served from the list, in score order
+            List<Index.Entry> ids = idx.get(new Query("myindex").filterPrefix("foo", "he").limit(0, 2));
+            assertEquals(2, ids.size());
+            assertEquals("doc2", ids.get(0).id);
+            assertEquals("doc3", ids.get(1).id);
+
+            // the lists know nothing of other filters, so this query walks the buckets
+            ids = idx.get(new Query("myindex").filterPrefix("foo", "he").filterEquals("bar", 2).limit(0, 2));
+            assertEquals(1, ids.size());
+            assertEquals("doc1", ids.get(0).id);
+
+            // after a delete the list is short, and the query falls back to the buckets
+            idx.delete("doc2");
+            ids = idx.get(new Query("myindex").filterPrefix("foo", "he").limit(0, 2));
+            assertEquals(2, ids.size());
+        } finally {
+            idx.drop();
+        }
+    }
+
+    public void testFuzzyPrefix() throws Exception {
+
+        Spec spec = new Spec(Spec.prefix("foo", false));
+        SimpleIndex idx = new SimpleIndex("redis://localhost:6379", "myindex", spec);
+        idx.setFuzzyPrefix(true);
+        idx.drop();
+
+        Document[] docs = {
+                new Document("doc1").setScore(1.0f).set("foo", "hello world"),
+                new Document("doc2").setScore(3.0f).set("foo", "help"),
+                new Document("doc3").setScore(2.0f).set("foo", "yellow"),
+        };
+
+        try {
+            idx.index(docs);
+
+            // all the candidates are merged by score
+            List<Index.Entry> ids = idx.get(new Query("myindex").filterFuzzyPrefix("foo", "hwl", 1));
+            assertEquals(2, ids.size());
+            assertEquals("doc2", ids.get(0).id);
+            assertEquals("doc1", ids.get(1).id);
+
+            assertEquals(0, idx.get(new Query("myindex").filterFuzzyPrefix("foo", "xyz", 1)).size());
+        } finally {
+            idx.drop();
+        }
+    }
+
+    public void testDelete() throws Exception {
+
+        Spec spec = new Spec(Spec.prefix("foo", true));
+        SimpleIndex idx = new SimpleIndex("redis://localhost:6379", "myindex", spec);
+        idx.drop();
+
+        Document[] docs = {
+                new Document("doc1").setScore(1.0f).set("foo", "hello world"),
+                new Document("doc2").setScore(2.0f).set("foo", "hello werld"),
+        };
+
+        try {
+            idx.index(docs);
+            idx.delete("doc2");
+
+            List<Index.Entry> ids = idx.get(new Query("myindex").filterPrefix("foo", "hell"));
+            assertEquals(1, ids.size());
+            assertEquals("doc1", ids.get(0).id);
+
+            // re-indexing a document removes its old entries
+            idx.index(new Document("doc1").setScore(1.0f).set("foo", "jello world"));
+            ids = idx.get(new Query("myindex").filterPrefix("foo", "hell"));
+            assertEquals(0, ids.size());
+            ids = idx.get(new Query("myindex").filterPrefix("foo", "world"));
+            assertEquals(1, ids.size());
+        } finally {
+            idx.drop();
+        }
+    }
 
     public void testRange() {
 
@@ -120,8 +553,8 @@ public class SimpleIndexTest extends TestCase {
 
             SimpleIndex.Range rng = idx.getRange(q, (byte)0);
 
-            assertEquals("2800000000000004D23A", HexBin.encode(rng.from));
-            assertEquals("28FFFFFFFFFFFFFFFF3AFF", HexBin.encode(rng.to));
+            assertEquals("5BC0934800000000003B", HexBin.encode(rng.from));
+            assertEquals("2B", HexBin.encode(rng.to));
 
         } catch (IOException e) {
             fail();
@@ -134,8 +567,8 @@ public class SimpleIndexTest extends TestCase {
 
             SimpleIndex.Range rng = idx.getRange(q, (byte)0);
 
-            assertEquals("5B00000000000004D23A", HexBin.encode(rng.from));
-            assertEquals("28FFFFFFFFFFFFFFFF3AFF", HexBin.encode(rng.to));
+            assertEquals("5BC0934800000000003A", HexBin.encode(rng.from));
+            assertEquals("2B", HexBin.encode(rng.to));
 
         } catch (IOException e) {
             fail();
@@ -148,8 +581,8 @@ public class SimpleIndexTest extends TestCase {
 
             SimpleIndex.Range rng = idx.getRange(q, (byte)0);
 
-            assertEquals("5B00000000000000003A", HexBin.encode(rng.from));
-            assertEquals("2800000000000004D23AFF", HexBin.encode(rng.to));
+            assertEquals("5B", HexBin.encode(rng.from));
+            assertEquals("28C0934800000000003A", HexBin.encode(rng.to));
 
         } catch (IOException e) {
             fail();
@@ -162,43 +595,50 @@ public class SimpleIndexTest extends TestCase {
 
             SimpleIndex.Range rng = idx.getRange(q, (byte)0);
 
-            assertEquals("5B00000000000000003A", HexBin.encode(rng.from));
-            assertEquals("5B00000000000004D23AFF", HexBin.encode(rng.to));
+            assertEquals("5B", HexBin.encode(rng.from));
+            assertEquals("28C0934800000000003B", HexBin.encode(rng.to));
 
         } catch (IOException e) {
             fail();
         }
 
-    }
+        // a comparison after an equality is bounded by the equality's prefix
+        spec = new Spec(Spec.numeric("a", Spec.NumericField.Encoding.Varint),
+                Spec.numeric("b", Spec.NumericField.Encoding.Varint));
+        idx = new SimpleIndex("redis://localhost:6379", "myindex", spec);
+        q = new Query("myindex").filterEquals("a", 1).filterGreaterThan("b", 5);
+        try {
 
-    public void testCartesianProduct() throws Exception {
+            SimpleIndex.Range rng = idx.getRange(q, (byte)0);
 
-        List<List<byte[]>> raw = new ArrayList<>();
-        List<byte[]> ls1 = new ArrayList();
-        ls1.add("hello".getBytes());
-        ls1.add("world".getBytes());
-        List<byte[]> ls2 = new ArrayList();
-        ls2.add("foo".getBytes());
-        ls2.add("bar".getBytes());
-        raw.add(ls1);
-        raw.add(ls2);
+            assertEquals("5B81013A81053B", HexBin.encode(rng.from));
+            assertEquals("2881013B", HexBin.encode(rng.to));
 
-        List<List<byte[]>> res = SimpleIndex.cartesianProduct(raw);
+        } catch (IOException e) {
+            fail();
+        }
 
-        String[] expected = new String[]{"hello||foo||", "hello||bar||", "world||foo||", "world||bar||"};
-        int i = 0;
-        for (List<byte[]> lst : res) {
-            StringBuffer buf = new StringBuffer();
-            for (byte []bs : lst) {
-                buf.append(new String(bs));
-                buf.append("||");
-            }
+    }
 
-            System.out.println(buf.toString());
-            assertEquals(expected[i], buf.toString());
-            i++;
-        }
+    public void testCombinations() throws Exception {
 
+        // every combination of the fields' values is an entry
+        Spec spec = new Spec(Spec.prefix("foo", true), Spec.prefix("bar", true));
+        SimpleIndex idx = new SimpleIndex("redis://localhost:6379", "myindex", spec);
+        Document doc = new Document("doc1").setScore(1).set("foo", "hello world").set("bar", "foo bar");
+
+        List<byte[]> entries = idx.encode(doc);
+        assertEquals(4, entries.size());
+
+        // [bucket]foo:[bucket]bar:
+        Set<String> combinations = new HashSet<>();
+        for (byte[] entry : entries) {
+            String str = new String(entry);
+            int sep = str.indexOf(':');
+            combinations.add(str.substring(1, sep) + "|" + str.substring(sep + 2, str.indexOf(':', sep + 1)));
+        }
+        assertEquals(new HashSet<>(Arrays.asList("hello world|foo bar", "hello world|bar", "world|foo bar",
+                "world|bar")), combinations);
     }
 
 
@@ -242,4 +682,163 @@ public class SimpleIndexTest extends TestCase {
         }
         assertEquals(1, ids.size());
     }
-}
\ No newline at end of file
+
+    public void testGeoNeighbors() throws Exception {
+
+        Spec spec = new Spec(new Spec.GeoField("bar", Encoders.Geohash.PRECISION_4KM), Spec.prefix("foo", false));
+        SimpleIndex idx = new SimpleIndex("redis://localhost:6379", "myindex", spec);
+        idx.setLayout(SimpleIndex.Layout.Compact);
+        idx.drop();
+
+        // a user right by the eastern edge of a cell
+        BoundingBox box = GeoHash.withCharacterPrecision(32.0667, 34.8000, Encoders.Geohash.PRECISION_4KM)
+                .getBoundingBox();
+        double lat = (box.getMinLat() + box.getMaxLat()) / 2;
+        double lon = box.getMaxLon() - 0.0005;
+
+        Document[] docs = {
+                // just across the edge, in the eastern neighbor
+                new Document("doc1").set("foo", "hello world").set("bar", new Double[]{lat, lon + 0.001}),
+                // in the north eastern neighbor, but too far away
+                new Document("doc2").set("foo", "hello world").set("bar", new Double[]{lat + 0.03, lon + 0.03}),
+        };
+
+        try {
+            idx.index(docs);
+            List<Index.Entry> ids = idx.get(new Query("myindex").filterNear("bar", lat, lon));
+            assertEquals(1, ids.size());
+            assertEquals("doc1", ids.get(0).id);
+        } finally {
+            idx.drop();
+        }
+    }
+
+    public void testCoveringCells() {
+        int precision = Encoders.Geohash.PRECISION_4KM;
+        Set<GeoHash> cells = SimpleIndex.coveringCells(32.0667, 34.8000, 100, precision);
+        assertTrue(cells.contains(GeoHash.withCharacterPrecision(32.0667, 34.8000, precision)));
+        assertTrue(cells.size() <= 4);
+
+        // every point within the radius is in a covering cell
+        cells = SimpleIndex.coveringCells(32.0667, 34.8000, 10000, precision);
+        for (double dlat = -0.08; dlat <= 0.08; dlat += 0.01) {
+            for (double dlon = -0.1; dlon <= 0.1; dlon += 0.01) {
+                double lat = 32.0667 + dlat, lon = 34.8000 + dlon;
+                if (Encoders.Geohash.distance(32.0667, 34.8000, lat, lon) <= 10000) {
+                    assertTrue(cells.contains(GeoHash.withCharacterPrecision(lat, lon, precision)));
+                }
+            }
+        }
+
+        // too many cells at the precision
+        assertNull(SimpleIndex.coveringCells(32.0667, 34.8000, 5000, 7));
+    }
+
+    public void testRadius() throws Exception {
+
+        Spec spec = new Spec(new Spec.GeoField("bar", Encoders.Geohash.PRECISION_4KM), Spec.prefix("foo", false));
+        SimpleIndex idx = new SimpleIndex("redis://localhost:6379", "myindex", spec);
+        idx.setLayout(SimpleIndex.Layout.Compact);
+        idx.drop();
+
+        Document[] docs = {
+                new Document("doc1").setScore(1).set("foo", "hello world").set("bar", new Double[]{32.0667, 34.8000}),
+                // about 3km away
+                new Document("doc2").setScore(2).set("foo", "hello werld").set("bar", new Double[]{32.0937, 34.8000}),
+                // about 9km away
+                new Document("doc3").setScore(3).set("foo", "hello world").set("bar", new Double[]{32.1477, 34.8000}),
+        };
+
+        try {
+            idx.index(docs);
+            List<Index.Entry> ids = idx.get(new Query("myindex").filterRadius("bar", 32.0667, 34.8000, 5000));
+            assertEquals(2, ids.size());
+            assertEquals("doc2", ids.get(0).id);
+            assertEquals("doc1", ids.get(1).id);
+
+            ids = idx.get(new Query("myindex").filterRadius("bar", 32.0667, 34.8000, 10000)
+                    .filterPrefix("foo", "hello wo"));
+            assertEquals(2, ids.size());
+        } finally {
+            idx.drop();
+        }
+
+        // a radius too large for the precision is covered by coarser cells
+        spec = new Spec(new Spec.GeoField("bar", 7), Spec.prefix("foo", false));
+        idx = new SimpleIndex("redis://localhost:6379", "myindex", spec);
+        idx.setLayout(SimpleIndex.Layout.Compact);
+        idx.drop();
+        try {
+            idx.index(docs);
+            List<Index.Entry> ids = idx.get(new Query("myindex").filterRadius("bar", 32.0667, 34.8000, 5000));
+            assertEquals(2, ids.size());
+            assertEquals("doc2", ids.get(0).id);
+            assertEquals("doc1", ids.get(1).id);
+        } finally {
+            idx.drop();
+        }
+
+        // legacy entries have no location to check the distance against
+        idx = new SimpleIndex("redis://localhost:6379", "myindex", spec);
+        try {
+            idx.get(new Query("myindex").filterRadius("bar", 32.0667, 34.8000, 5000));
+            fail("radius filters need the compact layout");
+        } catch (RuntimeException e) {
+        }
+    }
+
+    public void testSorting() throws Exception {
+
+        Spec spec = new Spec(Spec.prefix("foo", false));
+        SimpleIndex idx = new SimpleIndex("redis://localhost:6379", "myindex", spec);
+        idx.drop();
+
+        Document[] docs = {
+                new Document("doc1").setScore(1.0f).set("foo", "hello a"),
+                new Document("doc2").setScore(3.0f).set("foo", "hello b"),
+                new Document("doc3").setScore(2.0f).set("foo", "hello c"),
+        };
+
+        try {
+            idx.index(docs);
+            for (SimpleIndex.BucketWalk walk : SimpleIndex.BucketWalk.values()) {
+                idx.setBucketWalk(walk);
+
+                List<Index.Entry> ids = idx.get(new Query("myindex").filterPrefix("foo", "hell")
+                        .sortBy("foo", false));
+                assertEquals(3, ids.size());
+                assertEquals("doc3", ids.get(0).id);
+                assertEquals("doc1", ids.get(2).id);
+
+                ids = idx.get(new Query("myindex").filterPrefix("foo", "hell").sortBy("foo", true).limit(0, 2));
+                assertEquals(2, ids.size());
+                assertEquals("doc1", ids.get(0).id);
+                assertEquals("doc2", ids.get(1).id);
+
+                ids = idx.get(new Query("myindex").filterPrefix("foo", "hell").sortBy(Query.Sorting.SCORE, true));
+                assertEquals("doc1", ids.get(0).id);
+
+                // the second worst score is not among the lexically first two entries of its bucket
+                ids = idx.get(new Query("myindex").filterPrefix("foo", "hell").sortBy(Query.Sorting.SCORE, true)
+                        .limit(1, 1));
+                assertEquals(1, ids.size());
+                assertEquals("doc3", ids.get(0).id);
+
+                // the bucket is read whole, but only up to the limit
+                idx.setMaxSortScan(2);
+                try {
+                    idx.get(new Query("myindex").filterPrefix("foo", "hell").sortBy(Query.Sorting.SCORE, true)
+                            .limit(0, 1));
+                    fail("the bucket holds more entries than an ascending sort may read");
+                } catch (RuntimeException e) {
+                }
+                // descending sorts only read what they need
+                ids = idx.get(new Query("myindex").filterPrefix("foo", "hell").limit(0, 1));
+                assertEquals(1, ids.size());
+                idx.setMaxSortScan(SimpleIndex.DEFAULT_MAX_SORT_SCAN);
+            }
+        } finally {
+            idx.drop();
+        }
+    }
+}